@@ -0,0 +1,176 @@
+/*
+ * Messenger operations for the JMH benchmarks
+ * ===========================================
+ *
+ * Lives in the default package next to Messenger so that it can call the
+ * Messenger operations directly, the benchmarks reach it through the
+ * messenger.bench.Operations interface.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import messenger.bench.Operations;
+
+/**
+ * Loads the project data into the benchmark database and adds a group chat
+ * owned by bench_owner with CHAT_SIZE messages and bench_friend on the
+ * owner's contact list. Read operations run as the user in the most chats of
+ * the loaded data, write operations as bench_owner in its chat.
+ *
+ */
+public class MessengerOperations implements Operations {
+
+    static final String OWNER = "bench_owner";
+    static final String FRIEND = "bench_friend";
+    static final String PASSWORD = "bench";
+
+    // number of messages in the chat of bench_owner
+    static final int CHAT_SIZE = 10000;
+
+    private ConnectionPool _pool;
+    private String _reader;
+    private int _chat_id;
+
+    public void setUp (String url, String user, String password, File projectDir) throws Exception {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        try{
+            if (!loaded(connection)){
+                createTables(connection, new File(projectDir, "sql/src/create_tables.sql"));
+                BulkLoader.load(connection, new File(projectDir, "data"),
+                        BulkLoader.readStatements(new File(projectDir, "sql/src/create_indexes.sql")));
+            }
+        }finally{
+            connection.close();
+        }
+
+        this._pool = Messenger.openPool(url, user, password);
+        Messenger esql = new Messenger(this._pool);
+        removeFixture(esql);
+        esql.executeUpdate("CreateUser", Messenger.CREATE_USER, "bench-owner", OWNER, PASSWORD);
+        esql.executeUpdate("CreateUser", Messenger.CREATE_USER, "bench-friend", FRIEND, PASSWORD);
+        esql.executeUpdate("addToContact", "INSERT INTO user_list_contains SELECT contact_list, ? FROM usr WHERE login=?", FRIEND, OWNER);
+        this._chat_id = MessengerBench.seedChat(esql, CHAT_SIZE, OWNER);
+
+        List<List<String>> busiest = esql.executeQueryAndReturnResult("SELECT member FROM chat_list GROUP BY member ORDER BY count(*) DESC LIMIT 1");
+        this._reader = busiest.get(0).get(0);
+    }//end setUp
+
+    /*
+     * True if the database already holds the schema and some users
+     */
+    private static boolean loaded (Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try{
+            ResultSet rs = stmt.executeQuery("SELECT to_regclass('usr') IS NOT NULL AND EXISTS (SELECT 1 FROM pg_class WHERE relname='usr' AND reltuples > 0)");
+            rs.next();
+            return rs.getBoolean(1);
+        }finally{
+            stmt.close();
+        }
+    }//end loaded
+
+    /*
+     * Runs create_tables.sql, the DROP TABLE statements fail on a new database
+     */
+    private static void createTables (Connection connection, File sql) throws Exception {
+        Statement stmt = connection.createStatement();
+        try{
+            for (String statement : BulkLoader.readStatements(sql)){
+                try{
+                    stmt.executeUpdate(statement);
+                }catch (SQLException e){
+                    if (!statement.toUpperCase().startsWith("DROP"))
+                        throw e;
+                }
+            }
+        }finally{
+            stmt.close();
+        }
+    }//end createTables
+
+    /*
+     * Deletes the benchmark users and everything they own
+     */
+    private static void removeFixture (Messenger esql) throws SQLException {
+        esql.executeUpdate("DELETE FROM chat WHERE init_sender IN ('" + OWNER + "', '" + FRIEND + "')");
+        MessengerBench.deleteUsers(esql, OWNER);
+        MessengerBench.deleteUsers(esql, FRIEND);
+    }//end removeFixture
+
+    public Operations.Session newSession () {
+        return new MessengerSession();
+    }//end newSession
+
+    public void tearDown () throws Exception {
+        try{
+            removeFixture(new Messenger(this._pool));
+        }finally{
+            this._pool.close();
+        }
+    }//end tearDown
+
+    /*
+     * One Messenger instance, its console input is set before each call and
+     * its output is thrown away. Errors are still printed to System.err.
+     */
+    class MessengerSession implements Operations.Session {
+        private final Messenger _esql;
+
+        MessengerSession () {
+            this._esql = new Messenger(_pool, null, new PrintStream(OutputStream.nullOutputStream()));
+            this._esql.err = System.err;
+        }
+
+        private void input (String lines) {
+            this._esql.in = new BufferedReader(new StringReader(lines));
+        }
+
+        public String logIn () {
+            input(OWNER + "\n" + PASSWORD + "\n");
+            String login = Messenger.LogIn(this._esql);
+            this._esql.endSession();
+            return login;
+        }
+
+        public int browseChats () {
+            return Messenger.browseChats(this._esql, _reader, "group").length;
+        }
+
+        public void listChatMsgs () {
+            input("n\n");
+            Messenger.ListChatMsgs(this._esql, OWNER, _chat_id);
+        }
+
+        public void createMsg () {
+            input("bench message\n");
+            Messenger.CreateMsg(this._esql, OWNER, _chat_id);
+        }
+
+        public int browseContact () {
+            return Messenger.browseContact(this._esql, _reader, "contact").size();
+        }
+
+        public void addToChat () {
+            // add the first contact not in the chat, bench_friend, then leave the menu
+            input("1\n0\n");
+            Messenger.addToChat(this._esql, OWNER, _chat_id);
+        }
+
+        public void resetChat () throws Exception {
+            this._esql.executeUpdate("deleteFromChat", Messenger.DELETE_CHAT_MEMBER, _chat_id, FRIEND, OWNER);
+            SessionCache.invalidate(FRIEND);
+        }
+    }//end MessengerSession
+}//end MessengerOperations
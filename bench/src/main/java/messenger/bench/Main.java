@@ -0,0 +1,27 @@
+/*
+ * Entry point of benchmarks.jar
+ * =============================
+ *
+ */
+
+package messenger.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs JMH with its usual command line, always adding the gc profiler so
+ * that the allocation per operation (gc.alloc.rate.norm) is reported.
+ *
+ */
+public class Main {
+
+    public static void main (String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }//end main
+}//end Main
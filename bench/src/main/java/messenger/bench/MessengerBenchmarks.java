@@ -0,0 +1,135 @@
+/*
+ * JMH benchmarks of the core Messenger operations
+ * ===============================================
+ *
+ * Each benchmark runs one Messenger operation per call against a Postgres
+ * loaded with the project data, see Operations.
+ *
+ */
+
+package messenger.bench;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput, average time and the sampled latency distribution (p99 and
+ * others) of every operation. Run through Main to also get the allocation
+ * per operation.
+ *
+ * The database is an embedded Postgres started for the trial, unless
+ * -Dbench.url (with -Dbench.user, -Dbench.password) names one. The data is
+ * read from the project directory -Dbench.project, the current directory by
+ * default.
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessengerBenchmarks {
+
+    /**
+     * The database and the Messenger operations set up on it, shared by
+     * every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Database {
+        Operations operations;
+        private EmbeddedPostgres _postgres;
+
+        @Setup(Level.Trial)
+        public void setUp () throws Exception {
+            String url = System.getProperty("bench.url");
+            String user = System.getProperty("bench.user", "postgres");
+            String password = System.getProperty("bench.password", "");
+            if (url == null){
+                this._postgres = EmbeddedPostgres.builder().start();
+                url = this._postgres.getJdbcUrl("postgres", "postgres");
+            }
+            this.operations = (Operations) Class.forName(Operations.IMPLEMENTATION).getDeclaredConstructor().newInstance();
+            this.operations.setUp(url, user, password, new File(System.getProperty("bench.project", ".")));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown () throws Exception {
+            try{
+                this.operations.tearDown();
+            }finally{
+                if (this._postgres != null)
+                    this._postgres.close();
+            }
+        }
+    }//end Database
+
+    /**
+     * The Messenger session of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        Operations.Session session;
+
+        @Setup(Level.Trial)
+        public void setUp (Database database) {
+            this.session = database.operations.newSession();
+        }
+    }//end Client
+
+    /**
+     * Takes bench_friend out of the chat before every addToChat call, so
+     * that each call adds a member.
+     */
+    @State(Scope.Thread)
+    public static class EmptyChat {
+        @Setup(Level.Invocation)
+        public void setUp (Client client) throws Exception {
+            client.session.resetChat();
+        }
+    }//end EmptyChat
+
+    @Benchmark
+    public String logIn (Client client) {
+        return client.session.logIn();
+    }
+
+    @Benchmark
+    public int browseChats (Client client) {
+        return client.session.browseChats();
+    }
+
+    @Benchmark
+    public void listChatMsgs (Client client) {
+        client.session.listChatMsgs();
+    }
+
+    @Benchmark
+    public void createMsg (Client client) {
+        client.session.createMsg();
+    }
+
+    @Benchmark
+    public int browseContact (Client client) {
+        return client.session.browseContact();
+    }
+
+    @Benchmark
+    public void addToChat (Client client, EmptyChat chat) {
+        client.session.addToChat();
+    }
+}//end MessengerBenchmarks
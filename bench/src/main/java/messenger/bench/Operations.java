@@ -0,0 +1,64 @@
+/*
+ * The Messenger operations measured by the JMH benchmarks
+ * =======================================================
+ *
+ * Messenger lives in the default package, which JMH benchmarks and any
+ * other named package cannot refer to. MessengerOperations implements
+ * this interface from the default package and is loaded by name.
+ *
+ */
+
+package messenger.bench;
+
+import java.io.File;
+
+/**
+ * Sets up a database for the benchmarks and hands out sessions that run
+ * one Messenger operation per call.
+ *
+ */
+public interface Operations {
+
+    // the default package class implementing this interface
+    String IMPLEMENTATION = "MessengerOperations";
+
+    /**
+     * Creates the schema and loads data/*.csv if the database holds no
+     * users yet, then creates the benchmark users, chat and messages and
+     * opens the connection pool.
+     *
+     * @param url the JDBC URL of the database
+     * @param user the database user
+     * @param password the database password
+     * @param projectDir the directory holding data/ and sql/
+     * @throws java.lang.Exception when the database could not be set up
+     */
+    void setUp (String url, String user, String password, File projectDir) throws Exception;
+
+    /**
+     * Returns a new session on the pool, one per benchmark thread.
+     */
+    Session newSession ();
+
+    /**
+     * Removes the benchmark rows and closes the pool.
+     */
+    void tearDown () throws Exception;
+
+    /**
+     * A Messenger instance whose console input is fed by the benchmark.
+     */
+    interface Session {
+        String logIn ();
+        int browseChats ();
+        void listChatMsgs ();
+        void createMsg ();
+        int browseContact ();
+        void addToChat ();
+
+        /**
+         * Takes the member added by addToChat out of the chat again.
+         */
+        void resetChat () throws Exception;
+    }//end Session
+}//end Operations
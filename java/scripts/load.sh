@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#reload every table from project/data through JDBC COPY
+#needs a driver with COPY support, e.g. JDBC_JAR=$DIR/../lib/postgresql-42.7.3.jar
+#Use your database name, port number and login
+java -cp $DIR/../classes:${JDBC_JAR:-$DIR/../lib/pg73jdbc3.jar} BulkLoader $DB_NAME $PGPORT $USER $DIR/../../data $DIR/../../sql/src/create_indexes.sql
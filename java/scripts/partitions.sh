@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#create the coming monthly MESSAGE partitions and expire the old ones, run it from cron once a day
+#e.g. add -Dpartitions.retention=24 -Dpartitions.expire=drop to the java line to drop messages after two years
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessagePartitions $DB_NAME $PGPORT $USER
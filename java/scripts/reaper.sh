@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#remove the rows of deleted chats and accounts left by clients and servers started with -Dreaper.enabled=false
+#it stops once nothing is left to reap, -Dreaper.batch and -Dreaper.pause set the batch size and the pause between batches
+#Use your database name, port number and login
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Reaper $DB_NAME $PGPORT $USER
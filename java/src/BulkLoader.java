@@ -0,0 +1,219 @@
+/*
+ * Client-side bulk loader for the Messenger data files
+ * ====================================================
+ *
+ * Streams the files under project/data into a freshly created database with
+ * the JDBC COPY protocol, so no path on the database server is needed.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reloads every table from the data files in one transaction: the tables are
+ * truncated, the indexes of create_indexes.sql are dropped, each file is
+ * copied in through CopyManager, the messages are moved to their monthly
+ * partitions, the indexes are built again and the serial sequences are
+ * restarted after the largest loaded id.
+ *
+ * CopyManager is reached by reflection, so this compiles without the driver
+ * on the classpath. At run time it needs a PostgreSQL JDBC driver with COPY
+ * support (8.4 or later), pg73jdbc3.jar does not have it.
+ *
+ */
+public class BulkLoader {
+
+    /*
+     * A data file and the COPY statement loading it
+     */
+    static class Table {
+        final String name;
+        final String file;
+        final String copy;
+
+        Table (String name, String file, String columns) {
+            this.name = name;
+            this.file = file;
+            this.copy = "COPY " + name + columns + " FROM STDIN WITH DELIMITER ';'";
+        }
+    }//end Table
+
+    // the files shipped under data/, in foreign key order; USER_LIST_CONTAINS and MESSAGE start empty
+    static final Table[] TABLES = {
+        new Table("USER_LIST", "usr_list.csv", ""),
+        new Table("USR", "usr.csv", "(login, phoneNum, password, status, block_list, contact_list)"),
+        new Table("CHAT", "chat.csv", "(chat_id, chat_type, init_sender)"),
+        new Table("CHAT_LIST", "chat_list.csv", "(chat_id, member)"),
+    };
+
+    // serial columns whose sequences are restarted after the load
+    static final String[][] SERIALS = {
+        {"user_list", "list_id"},
+        {"chat", "chat_id"},
+        {"message", "msg_id"},
+    };
+
+    public static void main (String[] args) {
+        if (args.length != 5) {
+            System.err.println (
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    BulkLoader.class.getName () +
+                    " <dbname> <port> <user> <data dir> <create_indexes.sql>");
+            return;
+        }//end if
+
+        Connection connection = null;
+        try{
+            Class.forName ("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            connection = DriverManager.getConnection(url, args[2], "");
+            load(connection, new File(args[3]), readStatements(new File(args[4])));
+        }catch(Exception e){
+            System.err.println (e.getMessage ());
+        }finally{
+            try{
+                if (connection != null) connection.close();
+            }catch (SQLException e){
+                // ignored.
+            }
+        }
+    }//end main
+
+    /**
+     * Loads every data file found in dataDir.
+     *
+     * @param connection the connection to load through
+     * @param dataDir the directory holding the .csv files
+     * @param indexes the CREATE INDEX statements built after the load
+     * @throws java.lang.Exception when the load failed, nothing is loaded then
+     */
+    public static void load (Connection connection, File dataDir, List<String> indexes) throws Exception {
+        Object copyManager = copyManager(connection);
+        Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+        long total = System.nanoTime();
+
+        connection.setAutoCommit(false);
+        Statement stmt = connection.createStatement();
+        try{
+            // truncating in the same transaction lets the server skip WAL for the copied rows
+            stmt.executeUpdate("TRUNCATE CHAT_SUMMARY, MESSAGE, CHAT_LIST, CHAT, USER_LIST_CONTAINS, USR, USER_LIST");
+            for (String index : indexes)
+                stmt.executeUpdate("DROP INDEX IF EXISTS " + indexName(index));
+
+            System.out.println("table\t\t\trows\t\trows/s");
+            for (Table table : TABLES){
+                File file = new File(dataDir, table.file);
+                if (!file.exists())
+                    throw new FileNotFoundException(table.name + " data file " + file.getPath() + " not found");
+                Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+                long start = System.nanoTime();
+                long rows;
+                try{
+                    rows = (Long) copyIn.invoke(copyManager, table.copy, reader);
+                }catch (InvocationTargetException e){
+                    // the SQLException or IOException thrown by copyIn
+                    throw (Exception) e.getCause();
+                }finally{
+                    reader.close();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format("%-24s%d\t\t%.0f", table.name, rows, rows / seconds));
+            }
+
+            long start = System.nanoTime();
+            int partitions = MessagePartitions.createPartitions(connection, MessagePartitions.MONTHS_AHEAD);
+            System.out.println(String.format("%d message partitions created in %.3f s", partitions, (System.nanoTime() - start) / 1e9));
+
+            start = System.nanoTime();
+            for (String index : indexes)
+                stmt.executeUpdate(index);
+            System.out.println(String.format("%d indexes built in %.3f s", indexes.size(), (System.nanoTime() - start) / 1e9));
+
+            for (String[] serial : SERIALS)
+                stmt.executeQuery(String.format("SELECT setval(pg_get_serial_sequence('%1$s', '%2$s'), COALESCE(max(%2$s), 0) + 1, false) FROM %1$s", serial[0], serial[1])).close();
+
+            start = System.nanoTime();
+            int chats = stmt.executeUpdate(String.format(Messenger.CHAT_SUMMARY_FROM_MESSAGES, ""));
+            System.out.println(String.format("%d chat summaries built in %.3f s", chats, (System.nanoTime() - start) / 1e9));
+
+            connection.commit();
+        }catch (Exception e){
+            connection.rollback();
+            throw e;
+        }finally{
+            connection.setAutoCommit(true);
+        }
+        stmt.executeUpdate("ANALYZE");
+        stmt.close();
+        System.out.println(String.format("Loaded in %.3f s", (System.nanoTime() - total) / 1e9));
+    }//end load
+
+    /*
+     * Returns the driver's CopyManager of connection
+     */
+    static Object copyManager (Connection connection) throws Exception {
+        Class<?> pgConnection;
+        try{
+            pgConnection = Class.forName("org.postgresql.PGConnection");
+        }catch (ClassNotFoundException e){
+            throw new SQLException("The PostgreSQL JDBC driver is not on the classpath");
+        }
+        if (!pgConnection.isInstance(connection))
+            throw new SQLException("Not a PostgreSQL connection: " + connection.getClass().getName());
+        try{
+            return pgConnection.getMethod("getCopyAPI").invoke(connection);
+        }catch (NoSuchMethodException e){
+            throw new SQLException("This PostgreSQL JDBC driver has no COPY support, use version 8.4 or later");
+        }
+    }//end copyManager
+
+    /*
+     * Reads the ';' separated statements of an SQL file
+     */
+    static List<String> readStatements (File file) throws IOException {
+        StringBuilder sql = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try{
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (!line.trim().startsWith("--"))
+                    sql.append(line).append('\n');
+        }finally{
+            reader.close();
+        }
+        List<String> statements = new ArrayList<String>();
+        for (String statement : sql.toString().split(";"))
+            if (statement.trim().length() > 0)
+                statements.add(statement.trim());
+        return statements;
+    }//end readStatements
+
+    /*
+     * Returns the name of the index a CREATE INDEX statement creates
+     */
+    static String indexName (String createIndex) throws SQLException {
+        Matcher m = Pattern.compile("CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(\\w+)", Pattern.CASE_INSENSITIVE).matcher(createIndex);
+        if (!m.find())
+            throw new SQLException("Not a CREATE INDEX statement: " + createIndex);
+        return m.group(1);
+    }//end indexName
+}//end BulkLoader
@@ -0,0 +1,366 @@
+/*
+ * Message change events pushed by the database
+ * ============================================
+ *
+ * CreateMsg, EditMsg and DeleteMsg publish a "chat_id msg_id kind" event on
+ * the chat_events channel with NOTIFY, in the statement that writes the
+ * message. One listener per process receives the events and hands them to
+ * the sessions watching the chat, so that no session has to poll.
+ *
+ */
+
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener thread holding one connection outside the pool that LISTENs on
+ * the chat_events channel. Every event is offered to the subscriptions of
+ * its chat, each a bounded queue read by the watching session on its own
+ * thread, so a slow session never holds up the listener or the others.
+ *
+ * Events are only delivered while the listener is connected. subscribe()
+ * waits for it to be. When it had to reconnect, a subscription was made
+ * before it could connect, or a subscription queue overflowed, the
+ * subscription gets a RESYNC event instead of the events it missed.
+ *
+ * The driver's notification API is reached through reflection, as the
+ * driver is not on the compile class path.
+ *
+ */
+public class ChatEvents implements Runnable {
+
+    // channel the message statements NOTIFY on
+    static final String CHANNEL = "chat_events";
+
+    // event kinds
+    static final String CREATED = "create";
+    static final String EDITED = "edit";
+    static final String DELETED = "delete";
+    static final String RESYNC = "resync";
+
+    // milliseconds one wait for notifications lasts, close() takes at most this long
+    static final int POLL_MILLIS = 500;
+
+    // milliseconds between two attempts to reconnect the listener
+    static final long RETRY_MILLIS = 1000;
+
+    // milliseconds subscribe() waits for the listener to connect
+    static final long LISTEN_WAIT_MILLIS = 5000;
+
+    // events a subscription holds before it overflows
+    static final int SUBSCRIPTION_CAPACITY = 1000;
+
+    /**
+     * A change of one message.
+     */
+    public static final class Event {
+        public final int chat_id;
+        public final int msg_id;
+        public final String kind;
+
+        Event (int chat_id, int msg_id, String kind) {
+            this.chat_id = chat_id;
+            this.msg_id = msg_id;
+            this.kind = kind;
+        }
+    }//end Event
+
+    /**
+     * The events of one chat for one session, until closed.
+     */
+    public final class Subscription {
+        public final int chat_id;
+        private final BlockingQueue<Event> _queue = new ArrayBlockingQueue<Event>(SUBSCRIPTION_CAPACITY);
+        private volatile boolean _overflowed = false;
+        // subscribed while the listener was not connected, guarded by ChatEvents.this
+        private boolean _missed = false;
+
+        Subscription (int chat_id) {
+            this.chat_id = chat_id;
+        }
+
+        void offer (Event event) {
+            if (!this._queue.offer(event))
+                this._overflowed = true;
+        }
+
+        /**
+         * Waits at most millis for events and returns all that are queued,
+         * an empty list if none came. After an overflow the queued events
+         * are replaced by one RESYNC event.
+         */
+        public List<Event> poll (long millis) throws InterruptedException {
+            List<Event> events = new ArrayList<Event>();
+            Event first = this._queue.poll(millis, TimeUnit.MILLISECONDS);
+            if (first == null)
+                return events;
+            events.add(first);
+            this._queue.drainTo(events);
+            if (this._overflowed){
+                this._overflowed = false;
+                events.clear();
+                events.add(new Event(this.chat_id, 0, RESYNC));
+            }
+            return events;
+        }
+
+        /**
+         * Stops the events of this subscription.
+         */
+        public void close () {
+            synchronized (ChatEvents.this){
+                List<Subscription> subscriptions = _subscriptions.get(this.chat_id);
+                if (subscriptions != null){
+                    subscriptions.remove(this);
+                    if (subscriptions.isEmpty())
+                        _subscriptions.remove(this.chat_id, subscriptions);
+                }
+            }
+        }
+    }//end Subscription
+
+    private final ConnectionPool _pool;
+    private final ConcurrentMap<Integer, List<Subscription>> _subscriptions = new ConcurrentHashMap<Integer, List<Subscription>>();
+    private final Thread _thread;
+    private volatile boolean _running = true;
+    // the listener has LISTENed on its current connection, guarded by this
+    private boolean _listening = false;
+
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _delivered = new AtomicLong();
+    private long _reconnects = 0;
+
+    /**
+     * Starts the listener thread.
+     *
+     * @param pool the pool whose database the listener connects to
+     */
+    public ChatEvents (ConnectionPool pool) {
+        this._pool = pool;
+        this._thread = new Thread(this, "ChatEvents");
+        this._thread.setDaemon(true);
+        this._thread.start();
+    }//end ChatEvents
+
+    /**
+     * Returns a subscription to the events of chat_id. Events written after
+     * this call are delivered to it. Waits at most LISTEN_WAIT_MILLIS for
+     * the listener to connect. If it has not by then, the subscription gets
+     * a RESYNC event once it has. An interrupt ends the wait early.
+     */
+    public synchronized Subscription subscribe (int chat_id) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LISTEN_WAIT_MILLIS);
+        long left;
+        while (!this._listening && this._running && (left = deadline - System.nanoTime()) > 0){
+            try{
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<Subscription> subscriptions = this._subscriptions.get(chat_id);
+        if (subscriptions == null){
+            subscriptions = new CopyOnWriteArrayList<Subscription>();
+            this._subscriptions.put(chat_id, subscriptions);
+        }
+        Subscription subscription = new Subscription(chat_id);
+        subscription._missed = !this._listening;
+        subscriptions.add(subscription);
+        return subscription;
+    }//end subscribe
+
+    public void run () {
+        boolean reconnecting = false;
+        while (this._running){
+            Connection connection = null;
+            try{
+                connection = this._pool.openConnection();
+                Statement stmt = connection.createStatement();
+                stmt.executeUpdate("LISTEN " + CHANNEL);
+                stmt.close();
+                Notifications notifications = new Notifications(connection);
+                if (reconnecting)
+                    ++this._reconnects;
+                listening(reconnecting);
+                reconnecting = true;
+                while (this._running){
+                    for (String payload : notifications.poll())
+                        dispatch(payload);
+                }
+            }catch (SQLException e){
+                if (this._running){
+                    System.err.println("Chat events: " + e.getMessage());
+                    try{
+                        Thread.sleep(RETRY_MILLIS);
+                    }catch (InterruptedException interrupted){
+                        // close() stops the loop
+                    }
+                }
+            }finally{
+                synchronized (this){
+                    this._listening = false;
+                }
+                if (connection != null){
+                    try{
+                        connection.close();
+                    }catch (SQLException e){
+                        // ignored.
+                    }
+                }
+            }
+        }
+    }//end run
+
+    /*
+     * Marks the listener connected and wakes the waiting subscribe() calls.
+     * Whatever was sent while it was away is lost: after a reconnect every
+     * subscription gets a RESYNC, otherwise those made before it connected.
+     */
+    private synchronized void listening (boolean reconnected) {
+        this._listening = true;
+        for (List<Subscription> subscriptions : this._subscriptions.values()){
+            for (Subscription subscription : subscriptions){
+                if (reconnected || subscription._missed)
+                    subscription.offer(new Event(subscription.chat_id, 0, RESYNC));
+                subscription._missed = false;
+            }
+        }
+        notifyAll();
+    }//end listening
+
+    /*
+     * Hands the event in payload to the subscriptions of its chat
+     */
+    private void dispatch (String payload) {
+        this._received.incrementAndGet();
+        String[] fields = payload.split(" ");
+        if (fields.length != 3)
+            return;
+        Event event;
+        try{
+            event = new Event(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[2]);
+        }catch (NumberFormatException e){
+            return;
+        }
+        List<Subscription> subscriptions = this._subscriptions.get(event.chat_id);
+        if (subscriptions == null)
+            return;
+        for (Subscription subscription : subscriptions){
+            subscription.offer(event);
+            this._delivered.incrementAndGet();
+        }
+    }//end dispatch
+
+    /**
+     * Stops the listener and closes its connection.
+     */
+    public void close () {
+        this._running = false;
+        synchronized (this){
+            notifyAll();
+        }
+        this._thread.interrupt();
+        try{
+            this._thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }//end close
+
+    /**
+     * Returns the event counters.
+     */
+    public String stats () {
+        int watching = 0;
+        for (List<Subscription> subscriptions : this._subscriptions.values())
+            watching += subscriptions.size();
+        return String.format("Chat events: %d received, %d delivered, %d subscriptions, %d reconnects",
+                this._received.get(), this._delivered.get(), watching, this._reconnects);
+    }//end stats
+
+    /*
+     * The notifications of the driver's PGConnection. Drivers with
+     * getNotifications(int) wait on the socket, older ones are polled with
+     * a trivial query.
+     */
+    private static class Notifications {
+        private final Connection _connection;
+        private final Object _pgConnection;
+        private final Method _wait;
+        private final Method _get;
+        private final Method _payload;
+
+        Notifications (Connection connection) throws SQLException {
+            this._connection = connection;
+            try{
+                Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+                this._pgConnection = pgConnection.isInstance(connection) ? connection : connection.unwrap(pgConnection);
+                Method wait = null;
+                try{
+                    wait = pgConnection.getMethod("getNotifications", int.class);
+                }catch (NoSuchMethodException e){
+                    // an old driver
+                }
+                this._wait = wait;
+                this._get = pgConnection.getMethod("getNotifications");
+                this._payload = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+            }catch (ClassNotFoundException e){
+                throw new SQLException("The JDBC driver does not support LISTEN: " + e.getMessage());
+            }catch (NoSuchMethodException e){
+                throw new SQLException("The JDBC driver does not support LISTEN: " + e.getMessage());
+            }
+        }
+
+        /*
+         * The payloads received within POLL_MILLIS
+         */
+        List<String> poll () throws SQLException {
+            Object[] notifications;
+            if (this._wait != null){
+                notifications = (Object[]) invoke(this._wait, this._pgConnection, POLL_MILLIS);
+            }else{
+                try{
+                    Thread.sleep(POLL_MILLIS);
+                }catch (InterruptedException e){
+                    // close() stops the loop
+                }
+                Statement stmt = this._connection.createStatement();
+                stmt.executeQuery(ConnectionPool.VALIDATION_QUERY).close();
+                stmt.close();
+                notifications = (Object[]) invoke(this._get, this._pgConnection);
+            }
+            List<String> payloads = new ArrayList<String>();
+            if (notifications == null)
+                return payloads;
+            for (Object notification : notifications)
+                payloads.add((String) invoke(this._payload, notification));
+            return payloads;
+        }
+
+        private static Object invoke (Method method, Object target, Object... args) throws SQLException {
+            try{
+                return method.invoke(target, args);
+            }catch (InvocationTargetException e){
+                if (e.getCause() instanceof SQLException)
+                    throw (SQLException) e.getCause();
+                throw new SQLException(e.getCause());
+            }catch (IllegalAccessException e){
+                throw new SQLException(e);
+            }
+        }
+    }//end Notifications
+}//end ChatEvents
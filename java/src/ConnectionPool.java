@@ -0,0 +1,352 @@
+/*
+ * Connection pool for the Messenger client
+ * ========================================
+ *
+ * Keeps a bounded set of Postgres connections that many Messenger sessions
+ * borrow from, so that a session does not hold a physical connection while
+ * it waits on user input.
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed-bound pool of JDBC connections. At least minSize connections are
+ * kept open, at most maxSize are ever open at once. A connection that was idle
+ * for longer than the validation interval is checked with a trivial query
+ * before it is handed out, and connections idle for longer than the idle
+ * timeout are closed by a background thread while the pool is above minSize.
+ *
+ */
+public class ConnectionPool {
+
+    // query used to check that an idle connection is still alive
+    static final String VALIDATION_QUERY = "SELECT 1";
+
+    // idle connections are validated before use after this many milliseconds
+    static final long VALIDATION_INTERVAL = 5000;
+
+    /**
+     * A physical connection together with the prepared statements that were
+     * prepared on it.
+     */
+    static class Pooled {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        long lastUsed = System.currentTimeMillis();
+
+        Pooled (Connection connection) {
+            this.connection = connection;
+        }
+
+        void close () {
+            // one statement failing to close must not keep the connection open
+            for (PreparedStatement stmt : this.statements.values()){
+                try{
+                    stmt.close();
+                }catch (SQLException e){
+                    // ignored.
+                }
+            }
+            this.statements.clear();
+            try{
+                this.connection.close();
+            }catch (SQLException e){
+                // ignored.
+            }
+        }
+    }//end Pooled
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+    private final int _minSize;
+    private final int _maxSize;
+    private final long _acquireTimeout;
+    private final long _idleTimeout;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _available = _lock.newCondition();
+    // idle connections, most recently used first
+    private final Deque<Pooled> _idle = new ArrayDeque<Pooled>();
+    private int _open = 0;
+    private boolean _closed = false;
+    private Thread _evictor;
+
+    // pool counters, guarded by _lock
+    private long _acquires = 0;
+    private long _waits = 0;
+    private long _timeouts = 0;
+    private long _waitNanos = 0;
+    private long _maxWaitNanos = 0;
+    private long _created = 0;
+    private long _evicted = 0;
+    private long _invalid = 0;
+
+    /**
+     * Creates a pool and opens its first minSize connections.
+     *
+     * @param url the JDBC connection URL
+     * @param user the user name used to login to the database
+     * @param passwd the user login password
+     * @param minSize number of connections kept open at all times
+     * @param maxSize maximum number of connections open at once
+     * @param acquireTimeout milliseconds acquire waits for a free connection
+     * @param idleTimeout milliseconds after which an idle connection above minSize is closed
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public ConnectionPool (String url, String user, String passwd, int minSize, int maxSize,
+            long acquireTimeout, long idleTimeout) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        this._url = url;
+        this._user = user;
+        this._passwd = passwd;
+        this._minSize = minSize;
+        this._maxSize = maxSize;
+        this._acquireTimeout = acquireTimeout;
+        this._idleTimeout = idleTimeout;
+
+        for (int i = 0; i < minSize; ++i){
+            this._idle.push(open());
+            ++this._open;
+        }
+
+        this._evictor = new Thread(new Runnable(){
+            public void run(){
+                evictLoop();
+            }
+        }, "ConnectionPool-evictor");
+        this._evictor.setDaemon(true);
+        this._evictor.start();
+    }//end ConnectionPool
+
+    /*
+     * Opens a new physical connection
+     */
+    private Pooled open () throws SQLException {
+        Pooled pooled = new Pooled(DriverManager.getConnection(this._url, this._user, this._passwd));
+        this._lock.lock();
+        try{
+            ++this._created;
+        }finally{
+            this._lock.unlock();
+        }
+        return pooled;
+    }//end open
+
+    /**
+     * Opens a connection to the pool's database that is not part of the
+     * pool, for a caller that keeps it to itself, e.g. to LISTEN. The caller
+     * closes it.
+     */
+    public Connection openConnection () throws SQLException {
+        return DriverManager.getConnection(this._url, this._user, this._passwd);
+    }//end openConnection
+
+    /*
+     * Runs the validation query on a connection, false if it is broken
+     */
+    private static boolean validate (Pooled pooled) {
+        try{
+            Statement stmt = pooled.connection.createStatement();
+            stmt.executeQuery(VALIDATION_QUERY).close();
+            stmt.close();
+            return true;
+        }catch (SQLException e){
+            return false;
+        }
+    }//end validate
+
+    /**
+     * Borrows a connection, waiting at most the acquire timeout for one to be
+     * returned when maxSize connections are already in use.
+     *
+     * @return a connection that must be given back with release
+     * @throws java.sql.SQLException when no connection became available in time
+     */
+    public Pooled acquire () throws SQLException {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this._acquireTimeout);
+        boolean waited = false;
+        while (true){
+            Pooled pooled = null;
+            boolean create = false;
+            this._lock.lock();
+            try{
+                while (pooled == null && !create){
+                    if (this._closed)
+                        throw new SQLException("Connection pool is closed");
+                    if (!this._idle.isEmpty()){
+                        pooled = this._idle.pop();
+                    }else if (this._open < this._maxSize){
+                        ++this._open;
+                        create = true;
+                    }else{
+                        if (remaining <= 0){
+                            ++this._timeouts;
+                            throw new SQLException("Timed out waiting for a database connection after " + this._acquireTimeout + " ms");
+                        }
+                        waited = true;
+                        try{
+                            remaining = this._available.awaitNanos(remaining);
+                        }catch (InterruptedException e){
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted waiting for a database connection");
+                        }
+                    }
+                }
+            }finally{
+                this._lock.unlock();
+            }
+
+            if (create){
+                try{
+                    pooled = open();
+                }catch (SQLException e){
+                    discard(null);
+                    throw e;
+                }
+            }else if (System.currentTimeMillis() - pooled.lastUsed > VALIDATION_INTERVAL && !validate(pooled)){
+                pooled.close();
+                this._lock.lock();
+                try{
+                    ++this._invalid;
+                }finally{
+                    this._lock.unlock();
+                }
+                discard(null);
+                continue;
+            }
+
+            long wait = System.nanoTime() - start;
+            this._lock.lock();
+            try{
+                ++this._acquires;
+                if (waited) ++this._waits;
+                this._waitNanos += wait;
+                if (wait > this._maxWaitNanos) this._maxWaitNanos = wait;
+            }finally{
+                this._lock.unlock();
+            }
+            return pooled;
+        }
+    }//end acquire
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     *
+     * @param pooled the connection returned by acquire
+     */
+    public void release (Pooled pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        this._lock.lock();
+        try{
+            if (this._closed){
+                pooled.close();
+                --this._open;
+                return;
+            }
+            this._idle.push(pooled);
+            this._available.signal();
+        }finally{
+            this._lock.unlock();
+        }
+    }//end release
+
+    /**
+     * Closes a borrowed connection that is known to be broken instead of
+     * returning it to the pool.
+     *
+     * @param pooled the broken connection, or null if it was never opened
+     */
+    public void discard (Pooled pooled) {
+        if (pooled != null)
+            pooled.close();
+        this._lock.lock();
+        try{
+            --this._open;
+            this._available.signal();
+        }finally{
+            this._lock.unlock();
+        }
+    }//end discard
+
+    /*
+     * Closes connections that stayed idle longer than the idle timeout,
+     * oldest first, as long as more than minSize connections are open
+     */
+    private void evictLoop () {
+        while (true){
+            try{
+                Thread.sleep(Math.max(1000, this._idleTimeout / 2));
+            }catch (InterruptedException e){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            this._lock.lock();
+            try{
+                if (this._closed) return;
+                Iterator<Pooled> it = this._idle.descendingIterator();
+                while (it.hasNext() && this._open > this._minSize){
+                    Pooled pooled = it.next();
+                    if (now - pooled.lastUsed < this._idleTimeout)
+                        break;
+                    it.remove();
+                    pooled.close();
+                    --this._open;
+                    ++this._evicted;
+                }
+            }finally{
+                this._lock.unlock();
+            }
+        }
+    }//end evictLoop
+
+    /**
+     * Returns the pool counters: size, acquire waits and timeouts.
+     */
+    public String stats () {
+        this._lock.lock();
+        try{
+            return String.format("Pool: %d open (%d idle, min %d, max %d), %d acquires, %d waited, %d timed out, avg wait %.3f ms, max wait %.3f ms, %d created, %d evicted, %d failed validation",
+                    this._open, this._idle.size(), this._minSize, this._maxSize, this._acquires, this._waits, this._timeouts,
+                    this._acquires == 0 ? 0.0 : this._waitNanos / 1e6 / this._acquires, this._maxWaitNanos / 1e6,
+                    this._created, this._evicted, this._invalid);
+        }finally{
+            this._lock.unlock();
+        }
+    }//end stats
+
+    /**
+     * Closes every idle connection. Connections still borrowed are closed
+     * when they are released.
+     */
+    public void close () {
+        this._lock.lock();
+        try{
+            this._closed = true;
+            while (!this._idle.isEmpty()){
+                this._idle.pop().close();
+                --this._open;
+            }
+            this._available.signalAll();
+        }finally{
+            this._lock.unlock();
+        }
+        this._evictor.interrupt();
+    }//end close
+}//end ConnectionPool
@@ -0,0 +1,282 @@
+/*
+ * Monthly partitions of the MESSAGE table
+ * =======================================
+ *
+ * MESSAGE is range partitioned on msg_timestamp with one partition per
+ * month, named message_yYYYYmMM, and a default partition taking the rows no
+ * monthly partition covers. This creates the partitions before they are
+ * needed and takes the expired ones out of the table.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Partition maintenance, run by a cron job and after a bulk load:
+ *
+ * - rows in the default partition are moved to new partitions of their
+ *   months, e.g. after load_data.sql or when the maintenance did not run
+ * - the partitions of the current month and the next -Dpartitions.ahead (3)
+ *   months are created
+ * - with -Dpartitions.retention=N, the partitions of months that ended more
+ *   than N months before the current one are detached (-Dpartitions.expire=
+ *   detach, the default) or dropped (drop). 0, the default, keeps every month.
+ *
+ * A detached partition is kept as a plain table without foreign keys, to be
+ * archived and dropped by hand. The message counts and last messages of
+ * chat_summary are corrected in the transaction removing the partition.
+ *
+ */
+public class MessagePartitions {
+
+    static final String PARENT = "message";
+    static final String DEFAULT_PARTITION = "message_default";
+
+    // future months to create partitions for
+    static final int MONTHS_AHEAD = Integer.getInteger("partitions.ahead", 3);
+
+    // months kept before the current one, 0 keeps everything
+    static final int RETENTION_MONTHS = Integer.getInteger("partitions.retention", 0);
+
+    // whether expired partitions are dropped instead of detached
+    static final boolean DROP_EXPIRED = "drop".equals(System.getProperty("partitions.expire", "detach"));
+
+    // partition name of a month, e.g. message_y2024m03
+    static final String NAME_FORMAT = "'" + PARENT + "_y'yyyy'm'MM";
+
+    public static void main (String[] args) {
+        if (args.length != 3) {
+            System.err.println (
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    MessagePartitions.class.getName () +
+                    " <dbname> <port> <user>");
+            return;
+        }//end if
+
+        Connection connection = null;
+        try{
+            Class.forName ("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            connection = DriverManager.getConnection(url, args[2], "");
+            maintain(connection, MONTHS_AHEAD, RETENTION_MONTHS, DROP_EXPIRED);
+        }catch(Exception e){
+            System.err.println (e.getMessage ());
+        }finally{
+            try{
+                if (connection != null) connection.close();
+            }catch (SQLException e){
+                // ignored.
+            }
+        }
+    }//end main
+
+    /**
+     * Creates the missing partitions, then expires the old ones, one
+     * transaction per expired partition.
+     *
+     * @param connection the connection to run the maintenance on
+     * @param ahead the future months to create partitions for
+     * @param retention the months kept before the current one, 0 keeps all
+     * @param drop whether the expired partitions are dropped or detached
+     * @throws java.sql.SQLException when a step failed, the steps committed before stay done
+     */
+    public static void maintain (Connection connection, int ahead, int retention, boolean drop) throws SQLException {
+        connection.setAutoCommit(false);
+        try{
+            int created = createPartitions(connection, ahead);
+            connection.commit();
+            System.out.println(String.format("%d partitions created", created));
+
+            if (retention <= 0)
+                return;
+            Timestamp cutoff = monthStart(connection, -retention);
+            for (String partition : partitions(connection)){
+                Timestamp month = month(partition);
+                if (month == null || !month.before(cutoff))
+                    continue;
+                long messages = expire(connection, partition, drop);
+                connection.commit();
+                System.out.println(String.format("%s %s, %d messages", partition, drop ? "dropped" : "detached", messages));
+            }
+        }catch (SQLException e){
+            connection.rollback();
+            throw e;
+        }finally{
+            connection.setAutoCommit(true);
+        }
+    }//end maintain
+
+    /**
+     * Moves the rows of the default partition to partitions of their months
+     * and creates the partitions of the current month and the ahead next ones.
+     * Runs in the current transaction of connection, which must not be in
+     * auto-commit mode. Moving rows holds MESSAGE locked until the commit.
+     *
+     * @return the number of partitions created
+     */
+    public static int createPartitions (Connection connection, int ahead) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try{
+            List<String> existing = partitions(connection);
+            int created = 0;
+
+            List<Timestamp> stray = months(stmt, "SELECT DISTINCT date_trunc('month', msg_timestamp) FROM " + DEFAULT_PARTITION + " ORDER BY 1");
+            if (!stray.isEmpty()){
+                // the default partition must not hold rows of a new partition, so it is
+                // detached while they are moved and attached again after
+                stmt.executeUpdate("ALTER TABLE " + PARENT + " DETACH PARTITION " + DEFAULT_PARTITION);
+                for (Timestamp month : stray){
+                    String partition = name(month);
+                    if (!existing.contains(partition)){
+                        createPartition(stmt, month);
+                        existing.add(partition);
+                        ++created;
+                    }
+                    String range = String.format("msg_timestamp >= '%s' AND msg_timestamp < '%s'", month, nextMonth(month));
+                    stmt.executeUpdate("INSERT INTO " + PARENT + "(msg_id, msg_text, msg_timestamp, sender_login, chat_id) " +
+                            "SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM " + DEFAULT_PARTITION + " WHERE " + range);
+                    stmt.executeUpdate("DELETE FROM " + DEFAULT_PARTITION + " WHERE " + range);
+                }
+                stmt.executeUpdate("ALTER TABLE " + PARENT + " ATTACH PARTITION " + DEFAULT_PARTITION + " DEFAULT");
+            }
+
+            for (Timestamp month : months(stmt, String.format(
+                    "SELECT generate_series(date_trunc('month', LOCALTIMESTAMP), date_trunc('month', LOCALTIMESTAMP) + interval '%d month', interval '1 month')", ahead))){
+                if (existing.contains(name(month)))
+                    continue;
+                createPartition(stmt, month);
+                existing.add(name(month));
+                ++created;
+            }
+            return created;
+        }finally{
+            stmt.close();
+        }
+    }//end createPartitions
+
+    /*
+     * Detaches or drops one partition and takes its messages out of chat_summary.
+     * Returns the number of messages it held.
+     */
+    static long expire (Connection connection, String partition, boolean drop) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try{
+            // detaching first locks MESSAGE before the partition, in the order queries lock them,
+            // and keeps edits and deletes away from the rows counted below
+            stmt.executeUpdate("ALTER TABLE " + PARENT + " DETACH PARTITION " + partition);
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + partition);
+            rs.next();
+            long messages = rs.getLong(1);
+            rs.close();
+            // the last message of a chat is its newest one, so it only expires with all of the others
+            String expired = "S.last_msg_timestamp < '" + nextMonth(month(partition)) + "'";
+            stmt.executeUpdate("UPDATE chat_summary S SET msg_count=S.msg_count-E.messages, " +
+                    "last_msg_id=CASE WHEN " + expired + " THEN NULL ELSE S.last_msg_id END, " +
+                    "last_msg_timestamp=CASE WHEN " + expired + " THEN NULL ELSE S.last_msg_timestamp END, " +
+                    "last_sender=CASE WHEN " + expired + " THEN NULL ELSE S.last_sender END " +
+                    "FROM (SELECT chat_id, count(*) AS messages FROM " + partition + " GROUP BY chat_id) E WHERE S.chat_id=E.chat_id");
+            if (drop){
+                stmt.executeUpdate("DROP TABLE " + partition);
+            }else{
+                // an archived partition must not keep users and chats from being deleted
+                List<String> keys = new ArrayList<String>();
+                ResultSet fk = stmt.executeQuery("SELECT conname FROM pg_constraint WHERE contype='f' AND conrelid='" + partition + "'::regclass");
+                while (fk.next())
+                    keys.add(fk.getString(1));
+                fk.close();
+                for (String key : keys)
+                    stmt.executeUpdate("ALTER TABLE " + partition + " DROP CONSTRAINT " + key);
+            }
+            return messages;
+        }finally{
+            stmt.close();
+        }
+    }//end expire
+
+    /*
+     * Creates the partition of the month starting at month
+     */
+    static void createPartition (Statement stmt, Timestamp month) throws SQLException {
+        stmt.executeUpdate(String.format("CREATE TABLE %s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')",
+                name(month), PARENT, month, nextMonth(month)));
+    }//end createPartition
+
+    /*
+     * Returns the names of the partitions of MESSAGE
+     */
+    static List<String> partitions (Connection connection) throws SQLException {
+        List<String> partitions = new ArrayList<String>();
+        Statement stmt = connection.createStatement();
+        try{
+            ResultSet rs = stmt.executeQuery("SELECT C.relname FROM pg_inherits I JOIN pg_class C ON C.oid=I.inhrelid " +
+                    "WHERE I.inhparent='" + PARENT + "'::regclass ORDER BY C.relname");
+            while (rs.next())
+                partitions.add(rs.getString(1));
+            rs.close();
+        }finally{
+            stmt.close();
+        }
+        return partitions;
+    }//end partitions
+
+    /*
+     * Returns the first column of every row of a query returning timestamps
+     */
+    static List<Timestamp> months (Statement stmt, String query) throws SQLException {
+        List<Timestamp> months = new ArrayList<Timestamp>();
+        ResultSet rs = stmt.executeQuery(query);
+        while (rs.next())
+            months.add(rs.getTimestamp(1));
+        rs.close();
+        return months;
+    }//end months
+
+    /*
+     * The start of the month offset months from the current one
+     */
+    static Timestamp monthStart (Connection connection, int offset) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try{
+            return months(stmt, String.format("SELECT date_trunc('month', LOCALTIMESTAMP) + interval '%d month'", offset)).get(0);
+        }finally{
+            stmt.close();
+        }
+    }//end monthStart
+
+    static Timestamp nextMonth (Timestamp month) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(month);
+        calendar.add(Calendar.MONTH, 1);
+        return new Timestamp(calendar.getTimeInMillis());
+    }//end nextMonth
+
+    static String name (Timestamp month) {
+        return new SimpleDateFormat(NAME_FORMAT).format(month);
+    }//end name
+
+    /*
+     * The month of a partition name, null for the default partition or a name
+     * not made by name()
+     */
+    static Timestamp month (String partition) {
+        if (!partition.matches(PARENT + "_y\\d{4}m\\d{2}"))
+            return null;
+        try{
+            return new Timestamp(new SimpleDateFormat(NAME_FORMAT).parse(partition).getTime());
+        }catch (ParseException e){
+            return null;
+        }
+    }//end month
+}//end MessagePartitions
@@ -0,0 +1,290 @@
+/*
+ * Write-behind ingestion of new messages
+ * ======================================
+ *
+ * Collects the messages sent by every session in a bounded queue and writes
+ * them in multi-row batches, one statement and one commit per batch instead
+ * of one per message.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single writer thread drains the queue, waiting at most the linger time
+ * for a batch to fill up to the maximum batch size, and inserts the batch
+ * with one multi-row INSERT. Senders block while the queue is full and get an
+ * Ack that completes once the statement holding their message has committed.
+ * The statement text depends on the number of rows, so a batch is padded to
+ * the next power of two and a connection prepares at most 11 of them.
+ *
+ * With a linger time of 0 a batch is whatever is queued when the writer gets
+ * to it. Messages queued while a batch is being written make up the next one,
+ * so batches grow with the load without delaying any message.
+ *
+ * If a batch fails, its messages are inserted one at a time so that only the
+ * message that caused the failure is reported back to its sender.
+ *
+ */
+public class MessageWriter implements Runnable {
+
+    // most messages written by one statement, 3 parameters each
+    static final int MAX_ROWS = 1024;
+
+    // msg_timestamp is the clock of the server when the row is written, so it
+    // keeps growing with msg_id inside a batch. Like Messenger.CREATE_MSG it
+    // writes nothing when the sender is not a member of the chat.
+    static final String INSERT_MESSAGE = Messenger.withChatSummary(
+            "INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) SELECT ?, clock_timestamp(), ?, ? " +
+            "WHERE EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=? AND CL.member=?)", 1, ChatEvents.CREATED);
+
+    /**
+     * Completes when the message it was returned for is durable, denied or failed.
+     */
+    public static class Ack {
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile boolean _written;
+        private volatile SQLException _error;
+
+        void complete (boolean written, SQLException error) {
+            this._written = written;
+            this._error = error;
+            this._done.countDown();
+        }
+
+        /**
+         * Waits for the commit of the message.
+         *
+         * @return false when the sender is not a member of the chat and nothing was written
+         * @throws java.sql.SQLException when the message could not be written
+         */
+        public boolean await () throws SQLException {
+            try{
+                this._done.await();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for the message to be written");
+            }
+            if (this._error != null)
+                throw this._error;
+            return this._written;
+        }
+    }//end Ack
+
+    /*
+     * A message waiting in the queue
+     */
+    private static class Pending {
+        final String text;
+        final String sender;
+        final int chat_id;
+        final Ack ack = new Ack();
+
+        Pending (String text, String sender, int chat_id) {
+            this.text = text;
+            this.sender = sender;
+            this.chat_id = chat_id;
+        }
+    }//end Pending
+
+    private final Messenger _esql;
+    private final BlockingQueue<Pending> _queue;
+    private final Map<Integer, String> _inserts = new HashMap<Integer, String>();
+    private final int _maxBatch;
+    private final long _linger;
+    private final Thread _thread;
+    private volatile boolean _running = true;
+
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _blocked = new AtomicLong();
+    private long _batches = 0;
+    private long _written = 0;
+    private long _denied = 0;
+    private long _failed = 0;
+    private long _fallbacks = 0;
+
+    /**
+     * Starts a writer.
+     *
+     * @param pool the pool the writer borrows its connection from
+     * @param capacity number of messages the queue holds before senders block
+     * @param maxBatch maximum number of messages written in one statement, at most MAX_ROWS
+     * @param linger milliseconds the writer waits for a batch to fill up
+     */
+    public MessageWriter (ConnectionPool pool, int capacity, int maxBatch, long linger) {
+        this._esql = new Messenger(pool);
+        this._queue = new ArrayBlockingQueue<Pending>(capacity);
+        this._maxBatch = Math.min(maxBatch, MAX_ROWS);
+        this._linger = linger;
+        this._thread = new Thread(this, "MessageWriter");
+        this._thread.start();
+    }//end MessageWriter
+
+    /**
+     * Queues a message, blocking while the queue is full.
+     *
+     * @return the ack completed when the message is committed
+     * @throws java.sql.SQLException when the writer is closed
+     */
+    public Ack send (String sender, int chat_id, String text) throws SQLException {
+        if (!this._running)
+            throw new SQLException("The message writer is closed");
+        Pending pending = new Pending(text, sender, chat_id);
+        try{
+            if (!this._queue.offer(pending)){
+                this._blocked.incrementAndGet();
+                this._queue.put(pending);
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for room in the message queue");
+        }
+        // queued after close() began: the writer may have drained the queue for
+        // the last time, unless it is still there the writer has taken it
+        if (!this._running && this._queue.remove(pending))
+            throw new SQLException("The message writer is closed");
+        this._sent.incrementAndGet();
+        return pending.ack;
+    }//end send
+
+    public void run () {
+        List<Pending> batch = new ArrayList<Pending>(this._maxBatch);
+        while (this._running || !this._queue.isEmpty()){
+            try{
+                Pending first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._linger);
+                while (batch.size() < this._maxBatch){
+                    this._queue.drainTo(batch, this._maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= this._maxBatch || remaining <= 0)
+                        break;
+                    Pending next = this._queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            }catch (InterruptedException e){
+                // close() interrupts a writer that is waiting, the loop checks what is left
+            }
+            if (batch.size() > 0){
+                write(batch);
+                batch.clear();
+            }
+        }
+    }//end run
+
+    /*
+     * The statement inserting rows messages given as (text, sender, chat_id)
+     * parameters, in their order. Rows with a NULL sender are padding and
+     * write nothing. It returns the (chat_id, sender_login) pairs written: the
+     * messages of a sender who is a member of the chat are all written, those
+     * of one who is not are all denied.
+     */
+    static String insertMessages (int rows) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= rows; ++i)
+            values.append(i == 1 ? "" : ", ").append("(").append(i).append(", CAST(? AS text), CAST(? AS text), CAST(? AS integer))");
+        return Messenger.withChatSummary(
+                "INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) " +
+                "SELECT V.msg_text, clock_timestamp(), V.sender_login, V.chat_id FROM (VALUES " + values + ") V(n, msg_text, sender_login, chat_id) " +
+                "WHERE EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=V.chat_id AND CL.member=V.sender_login) ORDER BY V.n",
+                1, ChatEvents.CREATED, "SELECT DISTINCT chat_id, sender_login FROM M");
+    }//end insertMessages
+
+    /*
+     * Writes one batch with one statement, then acks every sender. A message
+     * whose sender got no row back was denied.
+     */
+    private void write (List<Pending> batch) {
+        int rows = 1;
+        while (rows < batch.size())
+            rows <<= 1;
+        String insert = this._inserts.get(rows);
+        if (insert == null){
+            insert = insertMessages(rows);
+            this._inserts.put(rows, insert);
+        }
+        Object[] params = new Object[3 * rows];
+        for (int i = 0; i < batch.size(); ++i){
+            Pending pending = batch.get(i);
+            params[3 * i] = pending.text;
+            params[3 * i + 1] = pending.sender;
+            params[3 * i + 2] = pending.chat_id;
+        }
+        try{
+            Set<String> members = new HashSet<String>();
+            for (List<String> row : this._esql.executeQueryAndReturnResult("MessageWriter.insert" + rows, insert, params))
+                members.add(row.get(0) + " " + row.get(1));
+            ++this._batches;
+            for (Pending pending : batch)
+                written(pending, members.contains(pending.chat_id + " " + pending.sender));
+        }catch (SQLException e){
+            // find the messages that fail by writing them one by one
+            ++this._fallbacks;
+            for (Pending pending : batch){
+                try{
+                    written(pending, this._esql.executeUpdate("MessageWriter.insert", INSERT_MESSAGE,
+                            pending.text, pending.sender, pending.chat_id, pending.chat_id, pending.sender) != 0);
+                }catch (SQLException single){
+                    ++this._failed;
+                    pending.ack.complete(false, single);
+                }
+            }
+        }
+    }//end write
+
+    /*
+     * Counts and acks a committed message, written or denied
+     */
+    private void written (Pending pending, boolean written) {
+        if (written)
+            ++this._written;
+        else
+            ++this._denied;
+        pending.ack.complete(written, null);
+    }//end written
+
+    /**
+     * Stops accepting messages, writes what is still queued and stops the
+     * writer thread. A message the writer did not get to is failed.
+     */
+    public void close () {
+        this._running = false;
+        this._thread.interrupt();
+        try{
+            this._thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        Pending pending;
+        while ((pending = this._queue.poll()) != null){
+            ++this._failed;
+            pending.ack.complete(false, new SQLException("The message writer is closed"));
+        }
+    }//end close
+
+    /**
+     * Returns the queue and batch counters.
+     */
+    public String stats () {
+        long batches = this._batches;
+        return String.format("Message writer: %d sent, %d waited for room, %d written in %d batches (avg %.1f), %d denied, %d batch fallbacks, %d failed",
+                this._sent.get(), this._blocked.get(), this._written, batches,
+                batches == 0 ? 0.0 : (double) (this._written) / batches, this._denied, this._fallbacks, this._failed);
+    }//end stats
+}//end MessageWriter
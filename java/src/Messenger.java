@@ -11,18 +11,27 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,14 +40,120 @@ import java.util.ArrayList;
  */
 public class Messenger {
 
-    // reference to physical database connection.
-    private Connection _connection = null;
+    // pool of physical database connections, shared by every session
+    private ConnectionPool _pool = null;
+
+    // true if this instance created _pool and has to close it
+    private boolean _ownsPool = false;
+
+    // connection borrowed from the pool for the current operation, and how
+    // many nested borrow() calls are holding it
+    private ConnectionPool.Pooled _borrowed = null;
+    private int _borrowDepth = 0;
+
+    // pool _borrowed came from, _pool or the pool of a replica
+    private ConnectionPool _borrowedFrom = null;
+
+    // set when a statement on _borrowed failed with a connection error, so
+    // that release() closes the connection instead of pooling it
+    private boolean _broken = false;
+
+    // whether the current operation ran a statement that may write, and when
+    // the last such operation of this session ended, see ReplicaRouter
+    private boolean _writing = false;
+    private long _lastWrite = Long.MIN_VALUE;
+
+    // cached lists and chats of the user logged in on this session
+    private SessionCache _session = null;
+
+    // statement cache counters
+    private long _stmtHits = 0;
+    private long _stmtMisses = 0;
+    private long _prepareNanos = 0;
+    private long _executeNanos = 0;
 
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
-    static BufferedReader in = new BufferedReader(
+    static BufferedReader console = new BufferedReader(
             new InputStreamReader(System.in));
 
+    // input and output of the session using this instance, the console
+    // unless the session belongs to a MessengerServer client
+    BufferedReader in = console;
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+
+    // number of messages shown per page in ListChatMsgs
+    static final int MSG_PAGE_SIZE = 10;
+
+    // number of members shown per chat in ListChat
+    static final int CHAT_LIST_MEMBERS = 3;
+
+    // unread messages counted per chat, more are shown as "99+"
+    static final int UNREAD_LIMIT = 99;
+
+    // usr rows (login, status) by login and chat rows (chat_type, init_sender)
+    // by chat_id, shared by every session of this process
+    static final long CACHE_TTL = Long.getLong("cache.ttl", 60000L);
+    static final SharedCache<String, List<String>> USERS = new SharedCache<String, List<String>>(
+            "usr", Integer.getInteger("cache.users", 10000), CACHE_TTL, 16);
+    static final SharedCache<Integer, List<String>> CHATS = new SharedCache<Integer, List<String>>(
+            "chat", Integer.getInteger("cache.chats", 10000), CACHE_TTL, 16);
+
+    // pool sizing, can be overridden with -Dpool.min=... and so on
+    static final int POOL_MIN = Integer.getInteger("pool.min", 1);
+    static final int POOL_MAX = Integer.getInteger("pool.max", 8);
+    static final long POOL_ACQUIRE_TIMEOUT = Long.getLong("pool.acquireTimeout", 5000L);
+    static final long POOL_IDLE_TIMEOUT = Long.getLong("pool.idleTimeout", 60000L);
+
+    // write-behind ingestion of CreateMsg, off unless started with -Dwriter.enabled=true
+    static final boolean WRITER_ENABLED = Boolean.getBoolean("writer.enabled");
+    static final int WRITER_QUEUE = Integer.getInteger("writer.queue", 10000);
+    static final int WRITER_BATCH = Integer.getInteger("writer.batch", 500);
+    static final long WRITER_LINGER = Long.getLong("writer.linger", 0L);
+
+    // the writer CreateMsg queues messages to, null when messages are inserted directly
+    static volatile MessageWriter messageWriter = null;
+
+    // background removal of the rows of deleted chats and accounts, -Dreaper.enabled=false
+    // leaves it to the Reaper tool
+    static final boolean REAPER_ENABLED = Boolean.parseBoolean(System.getProperty("reaper.enabled", "true"));
+    static final int REAPER_BATCH = Integer.getInteger("reaper.batch", 1000);
+    static final long REAPER_PAUSE = Long.getLong("reaper.pause", 100L);
+    static final long REAPER_IDLE = Long.getLong("reaper.idle", 60000L);
+
+    // the reaper of this process, null when it is not running
+    static volatile Reaper reaper = null;
+
+    // read queries on replicas: -Dreplica.urls lists the JDBC URLs of the replicas,
+    // comma separated, none by default
+    static final String REPLICA_URLS = System.getProperty("replica.urls", "");
+    static final long REPLICA_CHECK = Long.getLong("replica.check", 1000L);
+    static final long REPLICA_MAX_LAG = Long.getLong("replica.maxLag", 5000L);
+
+    // the queries that only read and may be answered by a replica
+    static final Set<String> REPLICA_READS = new HashSet<String>(Arrays.asList(
+            "browseChats.group", "browseChats.private", "browseChatSummaries", "UnreadCounts",
+            "browseChatMember", "browseChatMembers", "browseContact", "ListChatMsgs.first", "ListChatMsgs.next",
+            "ListMsgs", "SearchMsgs.first", "SearchMsgs.next", "chatAccessPermission", "isInContactList", "isInBlockList"));
+
+    // the router of the REPLICA_READS queries, null when every query goes to the primary
+    static volatile ReplicaRouter replicaRouter = null;
+
+    // the listener pushing message changes to WatchChat, started by the first watcher
+    private static ChatEvents chatEventListener = null;
+
+    // latency and rows of every query run by this process, the queries taking at least
+    // -Dslowquery.ms milliseconds are appended to -Dslowquery.log, -1 turns the log off
+    static final QueryStats QUERIES = new QueryStats(
+            Long.getLong("slowquery.ms", 200L), System.getProperty("slowquery.log", "slow_queries.log"));
+
+    // the SQL text of every statement name prepared by this process, see prepare()
+    static final ConcurrentMap<String, String> STATEMENT_SQL = new ConcurrentHashMap<String, String>();
+
+    // name the queries run through the methods without a query name are recorded under
+    static final String UNNAMED_QUERY = "(unnamed)";
+
     /**
      * Creates a new instance of Messenger
      *
@@ -56,8 +171,9 @@ public class Messenger {
             String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
             System.out.println ("Connection URL: " + url + "\n");
 
-            // obtain a physical connection
-            this._connection = DriverManager.getConnection(url, user, passwd);
+            // open the connection pool
+            this._pool = openPool(url, user, passwd);
+            this._ownsPool = true;
             System.out.println("Done");
         }catch (Exception e){
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -66,6 +182,171 @@ public class Messenger {
         }//end catch
     }//end Messenger
 
+    /**
+     * Opens a connection pool sized by the pool.* system properties
+     *
+     * @param url the JDBC connection URL
+     * @param user the user name used to login to the database
+     * @param passwd the user login password
+     * @return the new pool
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public static ConnectionPool openPool (String url, String user, String passwd) throws SQLException {
+        return new ConnectionPool(url, user, passwd, POOL_MIN, POOL_MAX, POOL_ACQUIRE_TIMEOUT, POOL_IDLE_TIMEOUT);
+    }//end openPool
+
+    /**
+     * Creates a new instance of Messenger sharing an existing connection pool
+     *
+     * @param pool the pool connections are borrowed from
+     */
+    public Messenger (ConnectionPool pool) {
+        this._pool = pool;
+    }//end Messenger
+
+    /**
+     * Creates a new instance of Messenger for a session that is not on the
+     * console, sharing an existing connection pool
+     *
+     * @param pool the pool connections are borrowed from
+     * @param in the input the session's answers are read from
+     * @param out the output prompts, results and errors are written to
+     */
+    public Messenger (ConnectionPool pool, BufferedReader in, PrintStream out) {
+        this._pool = pool;
+        this.in = in;
+        this.out = out;
+        this.err = out;
+    }//end Messenger
+
+    /**
+     * Borrows a connection from the pool for the current operation. Every
+     * statement run until the matching release() uses this same connection,
+     * which matters for session state such as currval. Calls may nest.
+     *
+     * @throws java.sql.SQLException when no connection could be acquired
+     */
+    public void borrow () throws SQLException {
+        borrow(null);
+    }//end borrow
+
+    /*
+     * borrow() for the named query. A query of REPLICA_READS that is not
+     * nested in another borrow goes where the replica router sends it.
+     */
+    private void borrow (String name) throws SQLException {
+        if (this._borrowDepth == 0){
+            ReplicaRouter router = replicaRouter;
+            ConnectionPool pool = null;
+            if (router != null && name != null && REPLICA_READS.contains(name))
+                pool = router.route(this._lastWrite);
+            if (pool != null){
+                try{
+                    this._borrowed = pool.acquire();
+                }catch (SQLException e){
+                    router.failed(pool, e);
+                    pool = null;
+                }
+            }
+            if (pool == null){
+                pool = this._pool;
+                this._borrowed = pool.acquire();
+            }
+            this._borrowedFrom = pool;
+        }
+        ++this._borrowDepth;
+    }//end borrow
+
+    /**
+     * Gives the connection taken by the matching borrow() back to the pool.
+     */
+    public void release () {
+        if (--this._borrowDepth == 0){
+            if (this._broken || isClosed(this._borrowed))
+                this._borrowedFrom.discard(this._borrowed);
+            else
+                this._borrowedFrom.release(this._borrowed);
+            this._broken = false;
+            this._borrowed = null;
+            this._borrowedFrom = null;
+            if (this._writing){
+                this._writing = false;
+                this._lastWrite = System.nanoTime();
+            }
+        }
+    }//end release
+
+    /*
+     * Returns e after marking the borrowed connection broken if e is a
+     * connection error (SQLState class 08)
+     */
+    private SQLException connectionError (SQLException e) {
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08"))
+            this._broken = true;
+        return e;
+    }//end connectionError
+
+    private static boolean isClosed (ConnectionPool.Pooled pooled) {
+        try{
+            return pooled.connection.isClosed();
+        }catch (SQLException e){
+            return true;
+        }
+    }//end isClosed
+
+    /*
+     * Records a write of this session made on another connection, e.g. by
+     * the message writer, so that its next reads see it
+     */
+    void wrote () {
+        this._lastWrite = System.nanoTime();
+    }//end wrote
+
+    /**
+     * Loads the session cache of a user that just logged in.
+     *
+     * @param login the user's login
+     * @throws java.sql.SQLException when failed to load the cache
+     */
+    public void startSession (String login) throws SQLException {
+        endSession();
+        this._session = SessionCache.open(this, login);
+    }//end startSession
+
+    /**
+     * Drops the session cache when the user logs out.
+     */
+    public void endSession () {
+        if (this._session != null){
+            this._session.close();
+            this._session = null;
+        }
+    }//end endSession
+
+    /**
+     * Returns the up to date session cache of login, or null if login is not
+     * the user of this session or the cache could not be reloaded, in which
+     * case callers fall back to the database.
+     */
+    public SessionCache session (String login) {
+        if (this._session == null || !this._session.login.equals(login))
+            return null;
+        try{
+            this._session.refresh(this);
+            return this._session;
+        }catch (SQLException e){
+            return null;
+        }
+    }//end session
+
+    /**
+     * Returns the connection pool this instance borrows from.
+     */
+    public ConnectionPool getPool () {
+        return this._pool;
+    }//end getPool
+
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
      * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -74,14 +355,25 @@ public class Messenger {
      * @throws java.sql.SQLException when update failed
      */
     public void executeUpdate (String sql) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+        borrow();
+        this._writing = true;
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            // creates a statement object
+            Statement stmt = this._borrowed.connection.createStatement ();
 
-        // issues the update instruction
-        stmt.executeUpdate (sql);
+            // issues the update instruction
+            counted = stmt.executeUpdate (sql);
 
-        // close the instruction
-        stmt.close ();
+            // close the instruction
+            stmt.close ();
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(UNNAMED_QUERY, sql, System.nanoTime() - began, counted);
+            release();
+        }
     }//end executeUpdate
 
     /**
@@ -94,37 +386,48 @@ public class Messenger {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQueryAndPrintResult (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
-
-        // iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()){
-            if(outputHeader){
-                for(int i = 1; i <= numCol; i++){
-                    System.out.print(rsmd.getColumnName(i) + "\t");
+        borrow();
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            // creates a statement object
+            Statement stmt = this._borrowed.connection.createStatement ();
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            int rowCount = 0;
+
+            // iterates through the result set and output them to standard out.
+            boolean outputHeader = true;
+            while (rs.next()){
+                if(outputHeader){
+                    for(int i = 1; i <= numCol; i++){
+                        this.out.print(rsmd.getColumnName(i) + "\t");
+                    }
+                    this.out.println();
+                    outputHeader = false;
                 }
-                System.out.println();
-                outputHeader = false;
-            }
-            for (int i=1; i<=numCol; ++i)
-                System.out.print (rs.getString (i) + "\t");
-            System.out.println ();
-            ++rowCount;
-        }//end while
-        stmt.close ();
-        return rowCount;
+                for (int i=1; i<=numCol; ++i)
+                    this.out.print (rs.getString (i) + "\t");
+                this.out.println ();
+                ++rowCount;
+            }//end while
+            stmt.close ();
+            counted = rowCount;
+            return rowCount;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(UNNAMED_QUERY, query, System.nanoTime() - began, counted);
+            release();
+        }
     }//end executeQuery
 
     /**
@@ -137,31 +440,42 @@ public class Messenger {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-        // creates a statement object 
-        Statement stmt = this._connection.createStatement (); 
-
-        // issues the query instruction 
-        ResultSet rs = stmt.executeQuery (query); 
-
-        /* 
-         ** obtains the metadata object for the returned result set.  The metadata 
-         ** contains row and column info. 
-         */ 
-        ResultSetMetaData rsmd = rs.getMetaData (); 
-        int numCol = rsmd.getColumnCount (); 
-        int rowCount = 0; 
-
-        // iterates through the result set and saves the data returned by the query. 
-        boolean outputHeader = false;
-        List<List<String>> result  = new ArrayList<List<String>>(); 
-        while (rs.next()){
-            List<String> record = new ArrayList<String>(); 
-            for (int i=1; i<=numCol; ++i) 
-                record.add(rs.getString (i)); 
-            result.add(record); 
-        }//end while 
-        stmt.close (); 
-        return result; 
+        borrow();
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            // creates a statement object 
+            Statement stmt = this._borrowed.connection.createStatement (); 
+
+            // issues the query instruction 
+            ResultSet rs = stmt.executeQuery (query); 
+
+            /* 
+             ** obtains the metadata object for the returned result set.  The metadata 
+             ** contains row and column info. 
+             */ 
+            ResultSetMetaData rsmd = rs.getMetaData (); 
+            int numCol = rsmd.getColumnCount (); 
+            int rowCount = 0; 
+
+            // iterates through the result set and saves the data returned by the query. 
+            boolean outputHeader = false;
+            List<List<String>> result  = new ArrayList<List<String>>(); 
+            while (rs.next()){
+                List<String> record = new ArrayList<String>(); 
+                for (int i=1; i<=numCol; ++i) 
+                    record.add(rs.getString (i)); 
+                result.add(record); 
+            }//end while 
+            stmt.close (); 
+            counted = result.size();
+            return result; 
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(UNNAMED_QUERY, query, System.nanoTime() - began, counted);
+            release();
+        }
     }//end executeQueryAndReturnResult
 
     /**
@@ -173,51 +487,453 @@ public class Messenger {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+        borrow();
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            // creates a statement object
+            Statement stmt = this._borrowed.connection.createStatement ();
 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
 
-        int rowCount = 0;
+            int rowCount = 0;
 
-        // iterates through the result set and count nuber of results.
-        if(rs.next()){
-            rowCount++;
-        }//end while
-        stmt.close ();
-        return rowCount;
+            // iterates through the result set and count nuber of results.
+            if(rs.next()){
+                rowCount++;
+            }//end while
+            stmt.close ();
+            counted = rowCount;
+            return rowCount;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(UNNAMED_QUERY, query, System.nanoTime() - began, counted);
+            release();
+        }
     }
 
+    /**
+     * Returns the prepared statement registered under name on the borrowed
+     * connection, preparing sql the first time the name is used on it.
+     *
+     * @param name the logical query name, e.g. "LogIn"
+     * @param sql the SQL text with ? placeholders
+     * @return the cached prepared statement
+     * @throws java.sql.SQLException when failed to prepare the statement
+     */
+    private PreparedStatement prepare (String name, String sql) throws SQLException {
+        // statements are cached by name, so one name must always stand for the same SQL
+        String named = STATEMENT_SQL.putIfAbsent(name, sql);
+        if (named != null && !named.equals(sql))
+            throw new SQLException("Statement name " + name + " is already used for: " + named);
+        // anything but a plain SELECT may write, data-modifying WITH included
+        if (!sql.regionMatches(true, 0, "SELECT", 0, 6))
+            this._writing = true;
+        Map<String, PreparedStatement> statements = this._borrowed.statements;
+        PreparedStatement stmt = statements.get(name);
+        if (stmt != null){
+            ++this._stmtHits;
+            return stmt;
+        }
+        ++this._stmtMisses;
+        long start = System.nanoTime();
+        stmt = this._borrowed.connection.prepareStatement(sql);
+        this._prepareNanos += System.nanoTime() - start;
+        statements.put(name, stmt);
+        return stmt;
+    }//end prepare
+
+    /*
+     * Binds params to the placeholders of stmt in order
+     */
+    private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+        stmt.clearParameters();
+        for (int i = 0; i < params.length; ++i)
+            stmt.setObject(i + 1, params[i]);
+    }//end bind
+
+    /**
+     * Executes the named update statement with the given parameters.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param params values bound to the placeholders
+     * @return the number of rows affected
+     * @throws java.sql.SQLException when update failed
+     */
+    public int executeUpdate (String name, String sql, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            int rows = stmt.executeUpdate();
+            this._executeNanos += System.nanoTime() - start;
+            counted = rows;
+            return rows;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end executeUpdate
+
+    /**
+     * Executes the named query with the given parameters and returns the
+     * results as a list of records.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param params values bound to the placeholders
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult (String name, String sql, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            List<List<String>> result = readResult(rs);
+            this._executeNanos += System.nanoTime() - start;
+            counted = result.size();
+            return result;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end executeQueryAndReturnResult
+
+    /**
+     * Executes the named update statement once for every parameter record,
+     * sending all of them to the DBMS as one batch.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param rows one array of values per execution
+     * @return the number of rows affected by each execution
+     * @throws java.sql.SQLException when update failed
+     */
+    public int[] executeBatch (String name, String sql, List<Object[]> rows) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            for (Object[] params : rows){
+                bind(stmt, params);
+                stmt.addBatch();
+            }
+            long start = System.nanoTime();
+            int[] counts = stmt.executeBatch();
+            this._executeNanos += System.nanoTime() - start;
+            counted = 0;
+            for (int count : counts)
+                counted += Math.max(0, count);
+            return counts;
+        }catch (SQLException e){
+            clearBatch(name);
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end executeBatch
+
+    /*
+     * Drops the pending batch of a named statement after a failed executeBatch
+     */
+    private void clearBatch (String name) {
+        try{
+            PreparedStatement stmt = this._borrowed.statements.get(name);
+            if (stmt != null) stmt.clearBatch();
+        }catch (SQLException e){
+            // ignored.
+        }
+    }//end clearBatch
+
+    /**
+     * Starts a transaction: borrows a connection and turns off autocommit
+     * on it until commit() or rollback().
+     *
+     * @throws java.sql.SQLException when failed to start the transaction
+     */
+    public void begin () throws SQLException {
+        borrow();
+        try{
+            this._borrowed.connection.setAutoCommit(false);
+        }catch (SQLException e){
+            connectionError(e);
+            release();
+            throw e;
+        }
+    }//end begin
+
+    /**
+     * Commits the transaction started by begin() and releases its connection.
+     *
+     * @throws java.sql.SQLException when the commit failed
+     */
+    public void commit () throws SQLException {
+        try{
+            this._borrowed.connection.commit();
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            endTransaction();
+        }
+    }//end commit
+
+    /**
+     * Rolls back the transaction started by begin() and releases its connection.
+     */
+    public void rollback () {
+        try{
+            this._borrowed.connection.rollback();
+        }catch (SQLException e){
+            // the connection is broken, nothing left to undo.
+            connectionError(e);
+        }finally{
+            endTransaction();
+        }
+    }//end rollback
+
+    private void endTransaction () {
+        try{
+            this._borrowed.connection.setAutoCommit(true);
+        }catch (SQLException e){
+            // ignored.
+        }finally{
+            release();
+        }
+    }//end endTransaction
+
+    /**
+     * Executes the named query with the given parameters and returns 1 if it
+     * found a row, 0 otherwise.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param params values bound to the placeholders
+     * @return the number of rows found, at most 1
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery (String name, String sql, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            int rowCount = rs.next() ? 1 : 0;
+            rs.close();
+            this._executeNanos += System.nanoTime() - start;
+            counted = rowCount;
+            return rowCount;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end executeQuery
+
+    /**
+     * Executes the named query with the given parameters and passes each
+     * row to handler as it is read, without building a list of records.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param handler called once per row with a view of the row
+     * @param params values bound to the placeholders
+     * @return the number of rows read
+     * @throws java.sql.SQLException when failed to execute the query or thrown by handler
+     */
+    public int forEachRow (String name, String sql, Row.Handler handler, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            int rowCount = 0;
+            try{
+                Row row = new Row(rs);
+                while (rs.next()){
+                    handler.row(row);
+                    ++rowCount;
+                }
+            }finally{
+                rs.close();
+            }
+            this._executeNanos += System.nanoTime() - start;
+            counted = rowCount;
+            return rowCount;
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end forEachRow
+
+    /**
+     * Executes the named query with the given parameters and returns its
+     * first column as ints, e.g. a list of chat or message ids.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param params values bound to the placeholders
+     * @return the first column of every row, in result order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int[] queryInts (String name, String sql, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            int[] values = new int[16];
+            int count = 0;
+            while (rs.next()){
+                if (count == values.length)
+                    values = Arrays.copyOf(values, count * 2);
+                values[count++] = rs.getInt(1);
+            }
+            rs.close();
+            this._executeNanos += System.nanoTime() - start;
+            counted = count;
+            return Arrays.copyOf(values, count);
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end queryInts
+
+    /**
+     * Executes the named query with the given parameters and returns its
+     * first column as longs.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text with ? placeholders
+     * @param params values bound to the placeholders
+     * @return the first column of every row, in result order
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public long[] queryLongs (String name, String sql, Object... params) throws SQLException {
+        borrow(name);
+        long began = System.nanoTime();
+        long counted = -1;
+        try{
+            PreparedStatement stmt = prepare(name, sql);
+            bind(stmt, params);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            long[] values = new long[16];
+            int count = 0;
+            while (rs.next()){
+                if (count == values.length)
+                    values = Arrays.copyOf(values, count * 2);
+                values[count++] = rs.getLong(1);
+            }
+            rs.close();
+            this._executeNanos += System.nanoTime() - start;
+            counted = count;
+            return Arrays.copyOf(values, count);
+        }catch (SQLException e){
+            throw connectionError(e);
+        }finally{
+            QUERIES.record(name, sql, System.nanoTime() - began, counted);
+            release();
+        }
+    }//end queryLongs
+
+    /*
+     * Reads every row of rs into a list of records and closes it
+     */
+    private static List<List<String>> readResult (ResultSet rs) throws SQLException {
+        int numCol = rs.getMetaData ().getColumnCount ();
+        List<List<String>> result  = new ArrayList<List<String>>();
+        while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+                record.add(rs.getString (i));
+            result.add(record);
+        }//end while
+        rs.close();
+        return result;
+    }//end readResult
+
+    /**
+     * Returns the statement cache counters: hit rate and the time spent
+     * preparing versus executing statements.
+     */
+    public String statementStats () {
+        long lookups = this._stmtHits + this._stmtMisses;
+        return String.format("Statements: %d prepared, %d lookups, hit rate %.1f%%, prepare %.3f ms, execute %.3f ms",
+                this._stmtMisses, lookups, lookups == 0 ? 0.0 : 100.0 * this._stmtHits / lookups,
+                this._prepareNanos / 1e6, this._executeNanos / 1e6);
+    }//end statementStats
+
+    /**
+     * Returns the counters of the caches shared by every session.
+     */
+    public static String cacheStats () {
+        return USERS.stats() + "\n" + CHATS.stats();
+    }//end cacheStats
+
+    /**
+     * Returns how many prepared statements this instance has executed, one
+     * database round trip each.
+     */
+    public long statementCount () {
+        return this._stmtHits + this._stmtMisses;
+    }//end statementCount
+
     /**
      * Method to fetch the last value from sequence. This
      * method issues the query to the DBMS and returns the current 
-     * value of sequence used for autogenerated keys
+     * value of sequence used for autogenerated keys. currval is local to
+     * a connection, so the caller has to hold borrow() around the insert
+     * and this call.
      *
      * @param sequence name of the DB sequence
      * @return current value of a sequence
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int getCurrSeqVal(String sequence) throws SQLException {
-        Statement stmt = this._connection.createStatement ();
-
-        ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-        if (rs.next())
-            return rs.getInt(1);
+        List<List<String>> rs = executeQueryAndReturnResult("currval." + sequence, String.format("Select currval('%s')", sequence));
+        if (rs.size() > 0)
+            return Integer.parseInt(rs.get(0).get(0));
         return -1;
     }
 
     /**
-     * Method to close the physical connection if it is open.
+     * Method to close the connection pool if this instance opened it.
      */
     public void cleanup(){
-        try{
-            if (this._connection != null){
-                this._connection.close ();
-            }//end if
-        }catch (SQLException e){
-            // ignored.
-        }//end try
+        if (this._ownsPool && this._pool != null){
+            this._pool.close ();
+        }//end if
     }//end cleanup
 
     /**
@@ -246,55 +962,25 @@ public class Messenger {
             String dbport = args[1];
             String user = args[2];
             esql = new Messenger (dbname, dbport, user, "");
+            startWriter(esql.getPool());
+            startReaper(esql.getPool());
+            startReplicas(esql.getPool(), user, "");
 
-            boolean keepon = true;
-            while(keepon) {
-                // These are sample SQL statements
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Create user");
-                System.out.println("2. Log in");
-                System.out.println("0. < EXIT");
-                String authorisedUser = null;
-                switch (readChoice()){
-                    case 1: CreateUser(esql); break;
-                    case 2: authorisedUser = LogIn(esql); break;
-                    case 0: keepon = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
-                }//end switch
-                if (authorisedUser != null) {
-                    boolean usermenu = true;
-                    while(usermenu) {
-                        System.out.println("MAIN MENU");
-                        System.out.println("---------");
-                        System.out.println("1. Messages");
-                        System.out.println("2. Chats");
-                        System.out.println("3. Users");
-                        System.out.println(".........................");
-                        System.out.println("9. Delete your account");
-                        System.out.println("0. Log out");
-                        switch (readChoice()){
-                            case 1: Messages( esql, authorisedUser); break;
-                            case 2: Chats( esql, authorisedUser); break;
-                            case 3: User( esql, authorisedUser); break;
-                            case 9: if (DeleteAccount(esql, authorisedUser)){
-											usermenu=false;
-											authorisedUser=null; 
-											break;
-									}
-									break;
-                            case 0: usermenu = false; break;
-                            default : System.out.println("Unrecognized choice!"); break;
-                        }
-                    }
-                }
-            }//end while
+            MainMenu(esql);
         }catch(Exception e) {
             System.err.println (e.getMessage ());
         }finally{
             // make sure to cleanup the created table and close the connection.
             try{
+                stopWriter();
+                stopReaper();
+                stopChatEvents();
+                stopReplicas();
                 if(esql != null) {
+                    System.out.println(esql.statementStats());
+                    System.out.println(esql.getPool().stats());
+                    System.out.println(cacheStats());
+                    System.out.println(QUERIES.dump());
                     System.out.print("Disconnecting from database...");
                     esql.cleanup ();
                     System.out.println("Done\n\nBye !");
@@ -305,6 +991,152 @@ public class Messenger {
         }//end try
     }//end main
 
+    /**
+     * Starts the message writer on pool if write-behind ingestion is enabled.
+     */
+    public static void startWriter (ConnectionPool pool) {
+        if (WRITER_ENABLED && messageWriter == null)
+            messageWriter = new MessageWriter(pool, WRITER_QUEUE, WRITER_BATCH, WRITER_LINGER);
+    }//end startWriter
+
+    /**
+     * Writes the messages still queued, then stops the message writer.
+     */
+    public static void stopWriter () {
+        MessageWriter writer = messageWriter;
+        if (writer == null) return;
+        messageWriter = null;
+        writer.close();
+        System.out.println(writer.stats());
+    }//end stopWriter
+
+    /**
+     * Starts routing the REPLICA_READS queries to the replicas of -Dreplica.urls
+     * if there are any.
+     *
+     * @param primary the pool of the primary
+     * @param user the user name used to login to the replicas
+     * @param passwd the user login password
+     * @throws java.sql.SQLException when a replica pool could not be opened
+     */
+    public static void startReplicas (ConnectionPool primary, String user, String passwd) throws SQLException {
+        String[] urls = ReplicaRouter.urls(REPLICA_URLS);
+        if (urls.length > 0 && replicaRouter == null)
+            replicaRouter = new ReplicaRouter(primary, urls, user, passwd, REPLICA_CHECK, REPLICA_MAX_LAG);
+    }//end startReplicas
+
+    /**
+     * Sends every query to the primary again and closes the replica pools.
+     */
+    public static void stopReplicas () {
+        ReplicaRouter router = replicaRouter;
+        if (router == null) return;
+        replicaRouter = null;
+        router.close();
+        System.out.println(router.stats());
+    }//end stopReplicas
+
+    /**
+     * Starts the reaper of deleted chats and accounts on pool if it is enabled.
+     */
+    public static void startReaper (ConnectionPool pool) {
+        if (REAPER_ENABLED && reaper == null){
+            reaper = new Reaper(pool, REAPER_BATCH, REAPER_PAUSE, REAPER_IDLE);
+            reaper.start();
+        }
+    }//end startReaper
+
+    /**
+     * Stops the reaper after its current batch.
+     */
+    public static void stopReaper () {
+        Reaper running = reaper;
+        if (running == null) return;
+        reaper = null;
+        running.close();
+        System.out.println(running.stats());
+    }//end stopReaper
+
+    /*
+     * Tells the reaper of this process that there is something to reap
+     */
+    static void wakeReaper () {
+        Reaper running = reaper;
+        if (running != null) running.wake();
+    }//end wakeReaper
+
+    /**
+     * Returns the chat event listener of this process, starting it on pool
+     * the first time.
+     */
+    static synchronized ChatEvents chatEvents (ConnectionPool pool) {
+        if (chatEventListener == null)
+            chatEventListener = new ChatEvents(pool);
+        return chatEventListener;
+    }//end chatEvents
+
+    /**
+     * Stops the chat event listener if it was started.
+     */
+    public static synchronized void stopChatEvents () {
+        if (chatEventListener == null) return;
+        chatEventListener.close();
+        System.out.println(chatEventListener.stats());
+        chatEventListener = null;
+    }//end stopChatEvents
+
+    /*
+     * Runs the interactive menus of one session until the user exits,
+     * reading from esql.in and writing to esql.out
+     **/
+    public static void MainMenu(Messenger esql){
+        boolean keepon = true;
+        while(keepon) {
+            // These are sample SQL statements
+            esql.out.println("MAIN MENU");
+            esql.out.println("---------");
+            esql.out.println("1. Create user");
+            esql.out.println("2. Log in");
+            esql.out.println("3. Query stats");
+            esql.out.println("0. < EXIT");
+            String authorisedUser = null;
+            switch (readChoice(esql)){
+                case 1: CreateUser(esql); break;
+                case 2: authorisedUser = LogIn(esql); break;
+                case 3: esql.out.println(QUERIES.dump()); break;
+                case 0: keepon = false; break;
+                default : esql.out.println("Unrecognized choice!"); break;
+            }//end switch
+            if (authorisedUser != null) {
+                boolean usermenu = true;
+                while(usermenu) {
+                    esql.out.println("MAIN MENU");
+                    esql.out.println("---------");
+                    esql.out.println("1. Messages");
+                    esql.out.println("2. Chats");
+                    esql.out.println("3. Users");
+                    esql.out.println(".........................");
+                    esql.out.println("9. Delete your account");
+                    esql.out.println("0. Log out");
+                    switch (readChoice(esql)){
+                        case 1: Messages( esql, authorisedUser); break;
+                        case 2: Chats( esql, authorisedUser); break;
+                        case 3: User( esql, authorisedUser); break;
+                        case 9: if (DeleteAccount(esql, authorisedUser)){
+											esql.endSession();
+											usermenu=false;
+											authorisedUser=null; 
+											break;
+									}
+									break;
+                        case 0: esql.endSession(); usermenu = false; break;
+                        default : esql.out.println("Unrecognized choice!"); break;
+                    }
+                }
+            }
+        }//end while
+    }//end MainMenu
+
     public static void Greeting(){
         System.out.println(
                 "\n\n*******************************************************\n" +
@@ -313,51 +1145,89 @@ public class Messenger {
     }//end Greeting
 
     /*
-     * Reads the users choice given from the keyboard
+     * Reads the users choice given from the session input
      * @int
      **/
-    public static int readChoice() {
+    public static int readChoice(Messenger esql) {
         int input;
         // returns only if a correct value is given.
         do {
-            System.out.print("Please make your choice: ");
+            esql.out.print("Please make your choice: ");
+            String line;
+            try {
+                line = esql.in.readLine();
+            }catch (IOException e) {
+                line = null;
+            }
+            // the session input is gone, nothing more can be read
+            if (line == null)
+                throw new IllegalStateException("End of input");
             try { // read the integer, parse it and break.
-                input = Integer.parseInt(in.readLine());
+                input = Integer.parseInt(line);
                 break;
             }catch (Exception e) {
-                System.out.println("Your input is invalid!");
+                esql.out.println("Your input is invalid!");
                 continue;
             }//end try
         }while (true);
         return input;
     }//end readChoice
 
+    /* Creates the empty block and contact lists and the user in one statement, so it is one
+     * round trip and a failed insert into USR leaves no USER_LIST rows behind.
+     * Parameters: phoneNum, login, password
+     */
+    static final String CREATE_USER =
+            "WITH B AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), " +
+            "C AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) " +
+            "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) SELECT ?, ?, ?, B.list_id, C.list_id FROM B, C";
+
     /*
      * Creates a new user with privided login, passowrd and phoneNum
      * An empty block and contact list would be generated and associated with a user
      **/
     public static void CreateUser(Messenger esql){
         try{
-            System.out.print("\tEnter user login: ");
-            String login = in.readLine();
-            System.out.print("\tEnter user password: ");
-            String password = in.readLine();
-            System.out.print("\tEnter user phone: ");
-            String phone = in.readLine();
-
-            //Creating empty contact\block lists for a user
-            esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-            int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-            esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-            int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-
-            String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-            esql.executeUpdate(query);
-            System.out.println ("User successfully created!");
+            esql.out.print("\tEnter user login: ");
+            String login = esql.in.readLine();
+            esql.out.print("\tEnter user password: ");
+            String password = esql.in.readLine();
+            esql.out.print("\tEnter user phone: ");
+            String phone = esql.in.readLine();
+
+            esql.executeUpdate("CreateUser", CREATE_USER, phone, login, password);
+            esql.out.println ("User successfully created!");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
+        }
+    }//end
+
+    /*
+     * Registers many users at once, each record holds login, password and phone.
+     * Users are sent batchSize at a time, every batch is one transaction: if any
+     * user of a batch fails (e.g. the login is taken) none of that batch is created
+     * and the error is thrown after the earlier batches were committed.
+     * @return number of users created
+     **/
+    public static int RegisterUsers(Messenger esql, List<String[]> users, int batchSize) throws SQLException{
+        int created = 0;
+        for (int from = 0; from < users.size(); from += batchSize){
+            List<Object[]> batch = new ArrayList<Object[]>();
+            for (int i = from; i < users.size() && i < from + batchSize; ++i){
+                String[] user = users.get(i);
+                batch.add(new Object[]{user[2], user[0], user[1]});
+            }
+            esql.begin();
+            try{
+                esql.executeBatch("CreateUser", CREATE_USER, batch);
+                esql.commit();
+            }catch(SQLException e){
+                esql.rollback();
+                throw e;
+            }
+            created += batch.size();
         }
+        return created;
     }//end
 
     /*
@@ -366,19 +1236,24 @@ public class Messenger {
      **/
     public static String LogIn(Messenger esql){
         try{
-            System.out.print("\tEnter user login: ");
-            String login = in.readLine();
-            login.replace("'","\\'");
-            System.out.print("\tEnter user password: ");
-            String password = in.readLine();
-
-            String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-            int userNum = esql.executeQuery(query);
-            if (userNum > 0)
+            esql.out.print("\tEnter user login: ");
+            String login = esql.in.readLine();
+            esql.out.print("\tEnter user password: ");
+            String password = esql.in.readLine();
+
+            int userNum = esql.executeQuery("LogIn", "SELECT 1 FROM Usr WHERE login = ? AND password = ? AND deleted_at IS NULL", login, password);
+            if (userNum > 0){
+                try{
+                    esql.startSession(login);
+                }catch(SQLException e){
+                    // permission checks go to the database instead
+                    esql.err.println (e.getMessage ());
+                }
                 return login;
+            }
             return null;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return null;
         }
     }//end
@@ -388,22 +1263,24 @@ public class Messenger {
         try{
             boolean keepIn=true;
             while (keepIn){
-                System.out.println("Messages Menu");
-                System.out.println("---------");
-                System.out.println("1. Write a new message");
-                System.out.println("2. Edit message");
-                System.out.println("3. Delete message");
-                System.out.println(".........................");
-                System.out.println("0. Back");
-                switch (readChoice()){
+                esql.out.println("Messages Menu");
+                esql.out.println("---------");
+                esql.out.println("1. Write a new message");
+                esql.out.println("2. Edit message");
+                esql.out.println("3. Delete message");
+                esql.out.println("4. Search messages");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
+                switch (readChoice(esql)){
                     case 1: CreateMsgOpt(esql, login);break;
                     case 2: EditMsgOpt(esql, login);break;
                     case 3: DeleteMsgOpt(esql, login);break;
+                    case 4: SearchMsgs(esql, login);break;
                     case 0: keepIn=false;break;
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -413,42 +1290,48 @@ public class Messenger {
         try{
             boolean keepIn=true;
             while (keepIn){
-                System.out.println("Chats Menu");
-                System.out.println("---------");
-                System.out.println("1. Browse your chat list");
-                System.out.println("2. Browse chat messages");
-                System.out.println("3. Browse the chat members");
-                System.out.println("4. Create a group chat");
-                System.out.println("5. Create a private chat");
-                System.out.println("6. Add members to chat");                
-                System.out.println("7. Delete members from chat");
-                System.out.println("8. Delete chat");
-                System.out.println(".........................");
-                System.out.println("0. Back");
-                switch (readChoice()){
+                esql.out.println("Chats Menu");
+                esql.out.println("---------");
+                esql.out.println("1. Browse your chat list");
+                esql.out.println("2. Browse chat messages");
+                esql.out.println("3. Browse the chat members");
+                esql.out.println("4. Create a group chat");
+                esql.out.println("5. Create a private chat");
+                esql.out.println("6. Add members to chat");                
+                esql.out.println("7. Delete members from chat");
+                esql.out.println("8. Delete chat");
+                esql.out.println("9. Watch a chat for new messages");
+                esql.out.println("10. Show unread messages per chat");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
+                switch (readChoice(esql)){
                     case 1:ListChat(esql, login); break;
-                    case 2:System.out.println("Please input the chat(id) that you want to enter in:");
-                           ListChatMsgs(esql, login, readChoice());
+                    case 2:esql.out.println("Please input the chat(id) that you want to enter in:");
+                           ListChatMsgs(esql, login, readChoice(esql));
                            break;
-                    case 3:System.out.println("Please input the chat_id:");
-                           ListChatMembers(esql, login, readChoice());
+                    case 3:esql.out.println("Please input the chat_id:");
+                           ListChatMembers(esql, login, readChoice(esql));
                            break;
                     case 4:CreateGroupChat(esql, login); break;
                     case 5:CreatePrivateChat(esql, login); break;
-                    case 6:System.out.print("Please input the chat(id) you want to add member(s) in :");
-                           addToChat(esql, login, readChoice());
+                    case 6:esql.out.print("Please input the chat(id) you want to add member(s) in :");
+                           addToChat(esql, login, readChoice(esql));
                            break;
-                    case 7:System.out.print("Please input the chat(id) you want to delete member(s) from :");
-                           deleteFromChat(esql, login, readChoice());
+                    case 7:esql.out.print("Please input the chat(id) you want to delete member(s) from :");
+                           deleteFromChat(esql, login, readChoice(esql));
                            break;
-                    case 8:System.out.print("Please input the chat(id) you want to delete");
-                           DeleteChat(esql, login, readChoice());
+                    case 8:esql.out.print("Please input the chat(id) you want to delete");
+                           DeleteChat(esql, login, readChoice(esql));
                            break;
+                    case 9:esql.out.print("Please input the chat(id) you want to watch: ");
+                           WatchChat(esql, login, readChoice(esql));
+                           break;
+                    case 10:UnreadCounts(esql, login); break;
                     case 0: keepIn=false;break;
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -458,17 +1341,17 @@ public class Messenger {
         try{
             boolean keepIn=true;
             while (keepIn){
-                System.out.println("User Menu");
-                System.out.println("---------");
-                System.out.println("1. Browse your contact list");
-                System.out.println("2. Browse your block list");
-                System.out.println("3. Add user to your contact list");
-                System.out.println("4. Add user to your block list");
-                System.out.println("5. Delete user from your contact list");
-                System.out.println("6. Delete user from your block list");
-                System.out.println(".........................");
-                System.out.println("0. Back");
-                switch (readChoice()){
+                esql.out.println("User Menu");
+                esql.out.println("---------");
+                esql.out.println("1. Browse your contact list");
+                esql.out.println("2. Browse your block list");
+                esql.out.println("3. Add user to your contact list");
+                esql.out.println("4. Add user to your block list");
+                esql.out.println("5. Delete user from your contact list");
+                esql.out.println("6. Delete user from your block list");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
+                switch (readChoice(esql)){
                     case 1: ListContacts(esql, login);break;
                     case 2: ListBlocks(esql, login); break;
                     case 3: addToContact(esql, login); break;
@@ -479,7 +1362,7 @@ public class Messenger {
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -487,13 +1370,16 @@ public class Messenger {
     //Delete account
     public static boolean DeleteAccount(Messenger esql, String user){
         try{
-            System.out.print("Are you sure you want to delete your account?(y/n)");
-            String opt = in.readLine();
+            esql.out.print("Are you sure you want to delete your account?(y/n)");
+            String opt = esql.in.readLine();
 
             if(opt.equals("y")){
-                String query = String.format("DELETE FROM USR WHERE USR.login='%s'", user);
-                esql.executeUpdate(query);
-                System.out.println("You have deleted your own account!");
+                // the reaper removes the rows of the account in the background
+                esql.executeUpdate("DeleteAccount", "UPDATE USR SET deleted_at=CURRENT_TIMESTAMP WHERE USR.login=? AND USR.deleted_at IS NULL", user);
+                SessionCache.invalidate(user);
+                USERS.remove(user);
+                wakeReaper();
+                esql.out.println("You have deleted your own account!");
                 return true;
             }
 
@@ -501,11 +1387,11 @@ public class Messenger {
                 return false;
             }
 
-            System.out.println("Invalid option! Please choose again:(y/n)");
+            esql.out.println("Invalid option! Please choose again:(y/n)");
             DeleteAccount(esql, user);
             return false;   
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;
         }
     }
@@ -515,16 +1401,16 @@ public class Messenger {
     public static void CreateMsgOpt(Messenger esql, String user){
         try{
             boolean keepIn=true;
-            List<String> chat_id_list;
+            int[] chat_id_list;
             int chat_id_opt;
             while (keepIn){
-                System.out.println("What type of chats do you want to send msg to?");
-                System.out.println("1. group");
-                System.out.println("2. private");
-                System.out.println(".........................");
-                System.out.println("0. Back");
+                esql.out.println("What type of chats do you want to send msg to?");
+                esql.out.println("1. group");
+                esql.out.println("2. private");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
 
-                switch (readChoice()){
+                switch (readChoice(esql)){
                     case 1: chat_id_list=browseChats(esql, user, "group"); 
                             chat_id_opt=ChatsOpt(esql, user, chat_id_list);
                             if (chat_id_opt == 0){
@@ -539,48 +1425,54 @@ public class Messenger {
                             CreateMsg(esql, user, chat_id_opt); break;
 
                     case 0: keepIn = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
+                    default : esql.out.println("Unrecognized choice!"); break;
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());   
+            esql.err.println (e.getMessage ());   
         }
     }//end
 
     //return the input chat_id
-    public static int ChatsOpt(Messenger esql, String user, List<String> chat_id_list){
+    //the members of every listed chat come from one browseChatMembers query
+    public static int ChatsOpt(Messenger esql, String user, int[] chat_id_list){
         try{
-            if (chat_id_list.size() == 0){
-                System.out.println("No chat exists!");
+            if (chat_id_list.length == 0){
+                esql.out.println("No chat exists!");
                 return 0;
             }
-            for (int i=0; i<chat_id_list.size(); ++i)
+            Map<Integer, List<String>> members = browseChatMembers(esql, user, chat_id_list);
+            for (int i=0; i<chat_id_list.length; ++i)
             {
-                System.out.print(String.format("%d. ", i+1));
-                List<String> member = browseChatMember(esql, user, Integer.parseInt(chat_id_list.get(i)));
+                esql.out.print(String.format("%d. ", i+1));
+                List<String> member = members.get(chat_id_list[i]);
+                if (member == null){
+                    esql.out.println("Permission denied: you are not a member of the chat");
+                    continue;
+                }
                 for(int j=0; j<member.size()-1; ++j)
-                    System.out.print(member.get(j).trim()+", ");
-                System.out.println(member.get(member.size()-1).trim());
+                    esql.out.print(member.get(j)+", ");
+                esql.out.println(member.get(member.size()-1));
             }
             boolean keepIn=true;
             while (keepIn){
-                System.out.print("\tEnter the chat num(0 for quit): ");
-                String input = in.readLine();
+                esql.out.print("\tEnter the chat num(0 for quit): ");
+                String input = esql.in.readLine();
                 //error here
                 int chat_id_opt = Integer.parseInt(input);
-                if (chat_id_opt>=1 && chat_id_opt<=chat_id_list.size()){
-                    return Integer.parseInt(chat_id_list.get(chat_id_opt-1));
+                if (chat_id_opt>=1 && chat_id_opt<=chat_id_list.length){
+                    return chat_id_list[chat_id_opt-1];
                 }
                 else if (chat_id_opt == 0)
                 {
                     return 0;
                 }
                 else{
-                    System.out.println("Invalid chat_id! Please type again: ");
+                    esql.out.println("Invalid chat_id! Please type again: ");
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return 0;
         }
         return 0;
@@ -590,18 +1482,18 @@ public class Messenger {
     public static void EditMsgOpt(Messenger esql, String user){
         try{
             boolean keepIn=true;
-            List<String> chat_id_list;
-            List<String> msg_id_list;
+            int[] chat_id_list;
+            int[] msg_id_list;
             int chat_id_opt;
             int msg_id_opt;
             while (keepIn){
-                System.out.println("What type of chats do you want to Enter in?");
-                System.out.println("1. group");
-                System.out.println("2. private");
-                System.out.println(".........................");
-                System.out.println("0. Back");
+                esql.out.println("What type of chats do you want to Enter in?");
+                esql.out.println("1. group");
+                esql.out.println("2. private");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
 
-                switch (readChoice()){
+                switch (readChoice(esql)){
                     case 1: chat_id_list=browseChats(esql, user, "group"); 
                             chat_id_opt=ChatsOpt(esql, user, chat_id_list);
                             if (chat_id_opt == 0){
@@ -626,69 +1518,81 @@ public class Messenger {
                             EditMsg(esql, user, msg_id_opt); break;
 
                     case 0: keepIn = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
+                    default : esql.out.println("Unrecognized choice!"); break;
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());   
+            esql.err.println (e.getMessage ());   
         }
     }
 
     //Return the message id of choice
-    public static int MsgsOpt(Messenger esql, String user, List<String> msg_id_list){
+    public static int MsgsOpt(Messenger esql, String user, int[] msg_id_list){
         try{
-            if (msg_id_list.size() == 0){
-                System.out.println("No msg from you!");
+            if (msg_id_list.length == 0){
+                esql.out.println("No msg from you!");
                 return 0;
             }
 
             boolean keepIn=true;
             while (keepIn){
-                System.out.print("\tEnter the msg num(0 for quit): ");
-                String input = in.readLine();
+                esql.out.print("\tEnter the msg num(0 for quit): ");
+                String input = esql.in.readLine();
                 int msg_id_opt = Integer.parseInt(input);
-                if (msg_id_opt>=1 && msg_id_opt<=msg_id_list.size()){
+                if (msg_id_opt>=1 && msg_id_opt<=msg_id_list.length){
                     keepIn = false;
-                    return Integer.parseInt(msg_id_list.get(msg_id_opt-1));
+                    return msg_id_list[msg_id_opt-1];
                 }
                 else if (msg_id_opt == 0)
                 {
                     return 0;
                 }
                 else{
-                    System.out.println("Invalid msg_id! Please type again: ");
+                    esql.out.println("Invalid msg_id! Please type again: ");
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return 0;
         }
         return 0;
     }//end
 
     //final step of editing message
+    //only the sender can edit a message, and only while still a member of its chat
     public static void EditMsg(Messenger esql, String user, int msg_id_opt){
         try{
-            System.out.print("Input your new msg: ");
-            String msg_text = in.readLine();
-            String query = String.format("UPDATE MESSAGE SET msg_text='%s', msg_timestamp=CURRENT_TIMESTAMP WHERE msg_id=%d", msg_text, msg_id_opt);
-            esql.executeUpdate(query);
-            System.out.println("The message has been edited!");
+            esql.out.print("Input your new msg: ");
+            String msg_text = esql.in.readLine();
+            if (esql.executeUpdate("EditMsg", EDIT_MSG, msg_text, msg_id_opt, user, user) == 0){
+                esql.out.println("Permission denied: you can only edit your own messages in your chats");
+                return;
+            }
+            esql.out.println("The message has been edited!");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
         }
     }
 
     /* Final step of sending message.
+     * With the message writer running the message is queued and written in
+     * a batch with those of other sessions, this waits until it is committed.
     */
     public static void CreateMsg(Messenger esql, String user, int chat_id_opt){
         try{
-            System.out.print("Input your msg: ");
-            String msg_text = in.readLine();
-            String query = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) VALUES('%s', CURRENT_TIMESTAMP, '%s', %d)", msg_text, user, chat_id_opt);
-            esql.executeUpdate(query);
+            esql.out.print("Input your msg: ");
+            String msg_text = esql.in.readLine();
+            MessageWriter writer = messageWriter;
+            boolean written;
+            if (writer != null){
+                written = writer.send(user, chat_id_opt, msg_text).await();
+                esql.wrote();
+            }else
+                written = esql.executeUpdate("CreateMsg", CREATE_MSG, msg_text, user, chat_id_opt, chat_id_opt, user) > 0;
+            if (!written)
+                esql.out.println("Permission denied: you are not a member of this chat");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
         }
     }//end
 
@@ -696,18 +1600,18 @@ public class Messenger {
     public static void DeleteMsgOpt(Messenger esql, String user){
         try{
             boolean keepIn=true;
-            List<String> chat_id_list;
-            List<String> msg_id_list;
+            int[] chat_id_list;
+            int[] msg_id_list;
             int chat_id_opt;
             int msg_id_opt;
             while (keepIn){
-                System.out.println("What type of chats do you want to Enter in?");
-                System.out.println("1. group");
-                System.out.println("2. private");
-                System.out.println(".........................");
-                System.out.println("0. Back");
+                esql.out.println("What type of chats do you want to Enter in?");
+                esql.out.println("1. group");
+                esql.out.println("2. private");
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
 
-                switch (readChoice()){
+                switch (readChoice(esql)){
                     case 1: chat_id_list=browseChats(esql, user, "group"); 
                             chat_id_opt=ChatsOpt(esql, user, chat_id_list);
                             if (chat_id_opt == 0){
@@ -735,7 +1639,7 @@ public class Messenger {
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());   
+            esql.err.println (e.getMessage ());   
         }
     }//end
 
@@ -743,13 +1647,15 @@ public class Messenger {
     public static void DeleteMsg(Messenger esql, String user, int msg_id_opt){
         try{
             /*
-               System.out.print("Input the msg id you want to delete: ");
-               String msg_text = in.readLine();*/
-            String query = String.format("DELETE FROM MESSAGE WHERE msg_id=%d", msg_id_opt);
-            esql.executeUpdate(query);
-            System.out.println("The message has been deleted!");
+               esql.out.print("Input the msg id you want to delete: ");
+               String msg_text = esql.in.readLine();*/
+            if (esql.executeQuery("DeleteMsg", DELETE_MSG, msg_id_opt, user, user) == 0){
+                esql.out.println("Permission denied: you can only delete your own messages in your chats");
+                return;
+            }
+            esql.out.println("The message has been deleted!");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
         }
     }
 
@@ -757,14 +1663,20 @@ public class Messenger {
     */
     public static void CreateGroupChat(Messenger esql, String login){
         try{
-            esql.executeUpdate(String.format("INSERT INTO chat(chat_type,init_sender) VALUES ('group','%s')",login));
-            int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-            String query = String.format("INSERT INTO chat_list VALUES(%d,'%s')",chat_id,login);
-            esql.executeUpdate(query);
+            int chat_id;
+            esql.borrow();
+            try{
+                esql.executeUpdate("CreateChat", "INSERT INTO chat(chat_type,init_sender) VALUES (?,?)", "group", login);
+                chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
+            }finally{
+                esql.release();
+            }
+            esql.executeUpdate("addChatMember", "INSERT INTO chat_list VALUES(?,?)", chat_id, login);
+            SessionCache.invalidate(login);
             addToChat(esql, login, chat_id);
-            System.out.println(String.format("You have created the chat, chat_id is %d", chat_id));
+            esql.out.println(String.format("You have created the chat, chat_id is %d", chat_id));
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -773,184 +1685,550 @@ public class Messenger {
     */
     public static void CreatePrivateChat(Messenger esql, String login){
         try{
-            esql.executeUpdate(String.format("INSERT INTO chat(chat_type,init_sender) VALUES ('private','%s')",login));
-            int chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
+            int chat_id;
+            esql.borrow();
+            try{
+                esql.executeUpdate("CreateChat", "INSERT INTO chat(chat_type,init_sender) VALUES (?,?)", "private", login);
+                chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
+            }finally{
+                esql.release();
+            }
             List<List<String>> contact = browseContact(esql, login, "contact");
             int i = 0;
-            System.out.println("-------------------------");
-            System.out.println("No.\tContacts");
-            System.out.println(".........................");                
+            esql.out.println("-------------------------");
+            esql.out.println("No.\tContacts");
+            esql.out.println(".........................");                
             while(i < contact.size()){
-                System.out.println(String.format("%d. %s", i+1, contact.get(i).get(0).trim()));
-                contact.get(i).get(0).replace("'","\\'");
+                esql.out.println(String.format("%d. %s", i+1, contact.get(i).get(0)));
                 ++i;
             }
-            System.out.println(".........................");
-            System.out.println("0. Back");
-            System.out.print("Select the contact you would like to chat with(0 for quit):");
-            int choice = readChoice();
+            esql.out.println(".........................");
+            esql.out.println("0. Back");
+            esql.out.print("Select the contact you would like to chat with(0 for quit):");
+            int choice = readChoice(esql);
             if(choice==0) return;
             if(choice<0 || choice>contact.size()){
-                System.out.println("Unrecognized Choice.");
+                esql.out.println("Unrecognized Choice.");
                 return;
             }
-            String query1 = String.format("INSERT INTO chat_list VALUES(%d,'%s')",chat_id,login);
-            String query2 = String.format("INSERT INTO chat_list VALUES(%d,'%s')",chat_id, contact.get(choice-1).get(0).trim());
-            esql.executeUpdate(query1);
-            esql.executeUpdate(query2);
-            System.out.println(String.format("You have created a private chat between you and %s, the chat's id is %d", contact.get(choice-1).get(0).trim(), chat_id));
+            esql.executeUpdate("addChatMember", "INSERT INTO chat_list VALUES(?,?)", chat_id, login);
+            esql.executeUpdate("addChatMember", "INSERT INTO chat_list VALUES(?,?)", chat_id, contact.get(choice-1).get(0));
+            SessionCache.invalidate(login);
+            SessionCache.invalidate(contact.get(choice-1).get(0));
+            esql.out.println(String.format("You have created a private chat between you and %s, the chat's id is %d", contact.get(choice-1).get(0), chat_id));
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
 
-    /* Print chat id and members
+    /* Print chat id, members and last activity, most recently active chats first
+     * All chats and their first members come from one browseChatSummaries query
     */
     public static void ListChat(Messenger esql, String login){
         try{
-            List<String> privateChat = browseChats(esql, login, "private");
-            List<String> groupChat = browseChats(esql, login, "group");
-            System.out.println("No. chat_id\tMembers");
-            System.out.println("--------------------");
-            System.out.println("Private chat");
+            List<List<String>> chats = browseChatSummaries(esql, login, CHAT_LIST_MEMBERS);
+            esql.out.println("No. chat_id\tMembers");
+            esql.out.println("--------------------");
+            esql.out.println("Private chat");
             int i = 0;
-            String chat_id;
-            while (i < privateChat.size()){
-                chat_id = privateChat.get(i).trim();
-                List<String> chatMember = browseChatMember(esql,login,Integer.parseInt(chat_id));
-                System.out.println(String.format("%d. %s\t%s,%s",++i, chat_id, chatMember.get(0), chatMember.get(1)));
+            for (List<String> chat : chats){
+                if (!chat.get(1).equals("private")) continue;
+                esql.out.println(String.format("%d. %s\t%s\t%s",++i, chat.get(0), chat.get(2), activity(chat)));
             }
-            System.out.println("--------------------");
-            System.out.println("Group chat");
+            esql.out.println("--------------------");
+            esql.out.println("Group chat");
             i = 0;
-            while(i < groupChat.size()){
-                chat_id = groupChat.get(i).trim();
-                List<String> chatMember = browseChatMember(esql,login,Integer.parseInt(chat_id));
-                int j = 0;
-                String output = String.format("%d. %s\t", ++i, chat_id);
-                while(j<chatMember.size() && j<3)
-                    output += "\t" + chatMember.get(j++).trim();
-                if(chatMember.size()>3) output += "...";
-                System.out.println(output);
+            for (List<String> chat : chats){
+                if (!chat.get(1).equals("group")) continue;
+                String output = String.format("%d. %s\t", ++i, chat.get(0));
+                String[] chatMember = chat.get(2).split(",");
+                for (int j = 0; j < chatMember.length; ++j)
+                    output += "\t" + chatMember[j];
+                if(Integer.parseInt(chat.get(3))>CHAT_LIST_MEMBERS) output += "...";
+                esql.out.println(output + "\t" + activity(chat));
             }
-            System.out.println(".......................");
+            esql.out.println(".......................");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
 
+    /* The message count and last message of a chat record of browseChatSummaries
+     */
+    static String activity(List<String> chat){
+        if (chat.get(4) == null || chat.get(5) == null)
+            return "[no messages]";
+        return String.format("[%s msgs, %s unread, last %s by %s]", chat.get(4), unread(Integer.parseInt(chat.get(7))), chat.get(5), chat.get(6));
+    }//end
+
+    /* An unread count of unreadCount as shown to the user
+     */
+    static String unread(int count){
+        return count > UNREAD_LIMIT ? UNREAD_LIMIT + "+" : String.valueOf(count);
+    }//end
+
+    /* Read watermarks: chat_list holds per member the msg_id and msg_timestamp of the newest
+     * message the member has seen, null before the first. ListChatMsgs advances it to the
+     * newest message it prints, and writing a message advances it for the sender (see
+     * withChatSummary). It only moves forward.
+     */
+    static final String MARK_READ =
+            "UPDATE chat_list SET last_read_msg_id=?, last_read_timestamp=? WHERE chat_id=? AND member=? " +
+            "AND (last_read_msg_id IS NULL OR (last_read_timestamp, last_read_msg_id) < (?, ?))";
+
+    /* The number of unread messages of a chat member, with member naming the chat_id and
+     * watermark columns of the chat_list row and summary the columns of its chat_summary row:
+     * none when the last message of the chat is not after the watermark, which reads no
+     * message, else the messages after the watermark in the chat_msg_time index, counted up to
+     * UNREAD_LIMIT + 1. A member who never read the chat has all its messages unread.
+     */
+    static String unreadCount(String member, String summary){
+        String watermark = "(" + member + ".last_read_timestamp, " + member + ".last_read_msg_id)";
+        return "CASE WHEN " + summary + ".last_msg_id IS NULL THEN 0 " +
+                "WHEN " + member + ".last_read_msg_id IS NULL THEN LEAST(" + summary + ".msg_count, " + (UNREAD_LIMIT + 1) + ") " +
+                "WHEN (" + summary + ".last_msg_timestamp, " + summary + ".last_msg_id) <= " + watermark + " THEN 0 " +
+                "ELSE (SELECT count(*) FROM (SELECT 1 FROM message U WHERE U.chat_id=" + member + ".chat_id " +
+                "      AND U.msg_timestamp >= " + member + ".last_read_timestamp AND (U.msg_timestamp, U.msg_id) > " + watermark + " " +
+                "      LIMIT " + (UNREAD_LIMIT + 1) + ") U) END";
+    }//end
+
+    /* Return one record per chat of the user: chat_id, chat_type, the first maxMembers members
+     * joined with ',', the total number of members, and from chat_summary the message count,
+     * the time and the sender of the last message (null for a chat without messages), then the
+     * number of unread messages as in unreadCount. Private chats with a blocked member are left
+     * out as in browseChats. Private chats come first, then group chats, the most recently
+     * active first.
+     */
+    public static List<List<String>> browseChatSummaries(Messenger esql, String login, int maxMembers) throws SQLException{
+        return esql.executeQueryAndReturnResult("browseChatSummaries", BROWSE_CHAT_SUMMARIES, login, maxMembers, login, login);
+    }//end
+
+    // the unread count is taken over the grouped chats, ME is one row per chat so its max() is the
+    // member's watermark
+    static final String BROWSE_CHAT_SUMMARIES =
+            "SELECT B.chat_id, B.chat_type, B.members, B.member_count, B.msg_count, B.last_msg_timestamp, B.last_sender, " + unreadCount("B", "B") + " " +
+            "FROM (SELECT C.chat_id, C.chat_type, string_agg(M.member, ',' ORDER BY M.rn) AS members, max(M.cnt) AS member_count, " +
+            "             CS.msg_count, CS.last_msg_id, CS.last_msg_timestamp, CS.last_sender, " +
+            "             max(ME.last_read_msg_id) AS last_read_msg_id, max(ME.last_read_timestamp) AS last_read_timestamp " +
+            "      FROM chat_list ME JOIN chat C ON C.chat_id=ME.chat_id " +
+            "      LEFT JOIN chat_summary CS ON CS.chat_id=C.chat_id " +
+            "      JOIN (SELECT chat_id, member, row_number() OVER (PARTITION BY chat_id ORDER BY member) AS rn, count(*) OVER (PARTITION BY chat_id) AS cnt " +
+            "            FROM chat_list WHERE chat_id IN (SELECT chat_id FROM chat_list WHERE member=?)) M ON M.chat_id=C.chat_id AND M.rn<=? " +
+            "      WHERE ME.member=? AND (C.chat_type='group' OR NOT EXISTS (" +
+            "            SELECT 1 FROM chat_list B, usr U, user_list_contains UL WHERE B.chat_id=C.chat_id AND U.login=? AND UL.list_id=U.block_list AND UL.list_member=B.member)) " +
+            "      GROUP BY C.chat_id, C.chat_type, CS.chat_id) B " +
+            "ORDER BY B.chat_type DESC, B.last_msg_timestamp DESC NULLS LAST, B.chat_id";
+
+    /* Print the number of unread messages of every chat of the user that has any,
+     * the most recently active chats first
+    */
+    public static void UnreadCounts(Messenger esql, String login){
+        try{
+            final PrintStream out = esql.out;
+            final int[] count = {0};
+            // chats without unread messages are skipped here, filtering them in SQL would count twice
+            esql.forEachRow("UnreadCounts",
+                    "SELECT CL.chat_id, " + unreadCount("CL", "CS") + " FROM chat_list CL LEFT JOIN chat_summary CS ON CS.chat_id=CL.chat_id " +
+                    "WHERE CL.member=? ORDER BY CS.last_msg_timestamp DESC NULLS LAST, CL.chat_id",
+                    new Row.Handler(){
+                        public void row(Row chat) throws SQLException {
+                            if (chat.getInt(2) == 0)
+                                return;
+                            if (count[0]++ == 0)
+                                out.println("chat_id\tunread");
+                            out.println(String.format("%d\t%s", chat.getInt(1), unread(chat.getInt(2))));
+                        }
+                    }, login);
+            if (count[0] == 0)
+                esql.out.println("No unread messages");
+        }catch(Exception e){
+            esql.err.println (e.getMessage ());
+        }
+    }//end
+
+    // the messages of a chat with the given ids, and the messages after a msg_id, each only
+    // while the watching user is still a member of the chat
+    static final String WATCH_CHANGED =
+            "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_login FROM message M " +
+            "WHERE M.chat_id=? AND M.msg_id = ANY (CAST(string_to_array(?, ',') AS integer[])) " +
+            "AND EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=M.chat_id AND CL.member=?) ORDER BY M.msg_timestamp, M.msg_id";
+    static final String WATCH_SINCE =
+            "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_login FROM message M " +
+            "WHERE M.chat_id=? AND M.msg_id>? " +
+            "AND EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=M.chat_id AND CL.member=?) ORDER BY M.msg_timestamp, M.msg_id";
+
+    /* Print the messages of a chat as they are written, edited or deleted, until the user
+     * enters a line. The changes are pushed by ChatEvents, only the changed messages are read.
+     * After events were lost (RESYNC) the messages after the last one shown are read instead.
+    */
+    public static void WatchChat(Messenger esql, String user, int chat_id){
+        if(!chatAccessPermission(esql, user, chat_id)){
+            esql.out.println("Action denied: You are not a member of this chat");
+            return;
+        }
+        ChatEvents.Subscription subscription = chatEvents(esql.getPool()).subscribe(chat_id);
+        try{
+            // subscribed first, so every message after the current last one arrives as an event
+            int[] last = esql.queryInts("WatchChat.last", "SELECT last_msg_id FROM chat_summary WHERE chat_id=?", chat_id);
+            final int[] lastShown = {last.length > 0 ? last[0] : 0};
+            final PrintStream out = esql.out;
+            Row.Handler print = new Row.Handler(){
+                public void row(Row msg) throws SQLException {
+                    lastShown[0] = Math.max(lastShown[0], msg.getInt(1));
+                    out.print(String.format("ID:%d Time:%s Sender:%s\n%s\n\n", msg.getInt(1), msg.getTimestamp(3), msg.getString(4), msg.getString(2)));
+                }
+            };
+            esql.out.println(String.format("Watching chat %d, press Enter to stop", chat_id));
+            while (!esql.in.ready()){
+                StringBuilder changed = new StringBuilder();
+                boolean resync = false;
+                for (ChatEvents.Event event : subscription.poll(ChatEvents.POLL_MILLIS)){
+                    if (event.kind.equals(ChatEvents.RESYNC))
+                        resync = true;
+                    else if (event.kind.equals(ChatEvents.DELETED))
+                        esql.out.print(String.format("ID:%d deleted\n\n", event.msg_id));
+                    else
+                        changed.append(changed.length() == 0 ? "" : ",").append(event.msg_id);
+                }
+                if (resync)
+                    esql.forEachRow("WatchChat.since", WATCH_SINCE, print, chat_id, lastShown[0], user);
+                else if (changed.length() > 0)
+                    esql.forEachRow("WatchChat.changed", WATCH_CHANGED, print, chat_id, changed.toString(), user);
+            }
+            esql.in.readLine();
+        }catch(Exception e){
+            esql.err.println (e.getMessage ());
+        }finally{
+            subscription.close();
+        }
+    }//end
+
     /* Print 10 msg each time of a chat
+     * Only one page is fetched per prompt, the (msg_timestamp, msg_id) of the last
+     * printed message is used as the cursor of the next page.
     */
     public static void ListChatMsgs(Messenger esql, String user, int chat_id){
         if(!chatAccessPermission(esql, user, chat_id)){
-            System.out.println("Action denied: You are not a member of this chat");
+            esql.out.println("Action denied: You are not a member of this chat");
             return;
         }
         try{
-            String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id=%d ORDER BY msg_timestamp DESC;",chat_id);
-            List<List<String>> msgList = esql.executeQueryAndReturnResult(query);
-            for (int i = 0; i < msgList.size(); i+=10){
-                for(int j = 0; j<10 && j+i<msgList.size(); ++j){
-                    System.out.print(String.format("ID:%s Time:%s Sender:%s\n%s\n\n", msgList.get(i+j).get(0), msgList.get(i+j).get(2),msgList.get(i+j).get(3), msgList.get(i+j).get(1)));
+            // cursor of the next page, set by the handler from each printed row
+            final Timestamp[] cursorTime = {null};
+            final int[] cursorId = {0};
+            // the first message printed is the newest, it becomes the read watermark
+            final Timestamp[] newestTime = {null};
+            final int[] newestId = {0};
+            final PrintStream out = esql.out;
+            Row.Handler print = new Row.Handler(){
+                public void row(Row msg) throws SQLException {
+                    cursorId[0] = msg.getInt(1);
+                    cursorTime[0] = msg.getTimestamp(3);
+                    if (newestTime[0] == null){
+                        newestTime[0] = cursorTime[0];
+                        newestId[0] = cursorId[0];
+                    }
+                    out.print(String.format("ID:%d Time:%s Sender:%s\n%s\n\n", cursorId[0], cursorTime[0], msg.getString(4), msg.getString(2)));
                 }
-                System.out.print("Next 10 messages? (y/n):");
-                String choice = in.readLine();
+            };
+            while(true){
+                boolean firstPage = cursorTime[0] == null;
+                if(fetchChatMsgPage(esql, chat_id, cursorTime[0], cursorId[0], MSG_PAGE_SIZE, print) == 0) break;
+                if (firstPage)
+                    esql.executeUpdate("ListChatMsgs.read", MARK_READ, newestId[0], newestTime[0], chat_id, user, newestTime[0], newestId[0]);
+                esql.out.print("Next 10 messages? (y/n):");
+                String choice = esql.in.readLine();
                 if(choice.equals("n")) return;
                 else if (!choice.equals("y")){
-                    System.out.println("Unrecognized choice");
+                    esql.out.println("Unrecognized choice");
                     return;
                 }
             }
-            System.out.println("Tis is all messages in the chat");
+            esql.out.println("Tis is all messages in the chat");
             return;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
 
+    /* Pass one page of messages of a chat to handler, newest first: msg_id, msg_text,
+     * msg_timestamp, sender_login. Returns the number of messages on the page.
+     * cursorTime/cursorId are the msg_timestamp and msg_id of the last message of the previous page,
+     * pass null as cursorTime for the first page. Served by the chat_msg_time index.
+     * The plain bound on msg_timestamp lets the next pages skip the newer partitions.
+     */
+    public static int fetchChatMsgPage(Messenger esql, int chat_id, Timestamp cursorTime, int cursorId, int limit, Row.Handler handler) throws SQLException{
+        if (cursorTime == null)
+            return esql.forEachRow("ListChatMsgs.first", "SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id=? ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?", handler, chat_id, limit);
+        return esql.forEachRow("ListChatMsgs.next", "SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id=? AND msg_timestamp <= ? AND (msg_timestamp, msg_id) < (?, ?) ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?", handler, chat_id, cursorTime, cursorTime, cursorId, limit);
+    }//end
+
+    /* Search the messages of every chat the user is a member of, best match first.
+     * Pages are fetched like in ListChatMsgs, the (rank, msg_id) of the last printed
+     * match is the cursor of the next page.
+    */
+    public static void SearchMsgs(Messenger esql, String login){
+        try{
+            esql.out.print("Search for: ");
+            String query = esql.in.readLine();
+            if (query == null || query.trim().length() == 0){
+                esql.out.println("Nothing to search for");
+                return;
+            }
+            String cursorRank = null;
+            int cursorId = 0;
+            int found = 0;
+            while(true){
+                List<List<String>> page = searchMsgPage(esql, login, query, cursorRank, cursorId, MSG_PAGE_SIZE);
+                if(page.size() == 0) break;
+                for (List<String> msg : page)
+                    esql.out.print(String.format("%d. ID:%s Chat:%s Time:%s Sender:%s\n%s\n\n", ++found, msg.get(0), msg.get(1), msg.get(3), msg.get(2), msg.get(4)));
+                if(page.size() < MSG_PAGE_SIZE) break;
+                List<String> last = page.get(page.size()-1);
+                cursorId = Integer.parseInt(last.get(0));
+                cursorRank = last.get(5);
+                esql.out.print("Next 10 matches? (y/n):");
+                String choice = esql.in.readLine();
+                if(!"y".equals(choice)) return;
+            }
+            esql.out.println(found == 0 ? "No message matches" : "These are all the matching messages");
+        }catch(Exception e){
+            esql.err.println (e.getMessage ());
+            return;
+        }
+    }//end
+
+    // every match of a search in the chats of a user, ranked. msg_tsv holds
+    // to_tsvector('english', msg_text), the query must use the same configuration.
+    // chat_id + 0 keeps the planner from ANDing the chat_msg_time entries of each
+    // chat of the user into the msg_text_search scan, once per chat; the plans
+    // benchmark of MessengerBench fails if that plan comes back.
+    static final String SEARCH_MSGS =
+            "SELECT msg_id, chat_id, sender, msg_timestamp, snippet, rank FROM (" +
+            "  SELECT M.msg_id, M.chat_id, M.sender_login AS sender, M.msg_timestamp, substring(M.msg_text, 1, 60) AS snippet, " +
+            "         round(CAST(ts_rank(M.msg_tsv, Q) AS numeric), 6) AS rank " +
+            "  FROM plainto_tsquery('english', ?) Q, message M " +
+            "  WHERE M.chat_id + 0 = ANY (ARRAY(SELECT chat_id FROM chat_list WHERE member=?)) AND M.msg_tsv @@ Q) S ";
+
+    /* Return one page of the messages matching query in the chats of login: msg_id, chat_id,
+     * sender, msg_timestamp, the first 60 characters of the text and the rank, best rank first.
+     * cursorRank/cursorId are the rank and msg_id of the last match of the previous page, pass
+     * null as cursorRank for the first page, every match can be reached by paging on. Each page
+     * takes the matches from one scan of the msg_text_search GIN index and ranks all of those in
+     * the chats of login, so a common word costs more than a rare one. The rank reads the stored
+     * msg_tsv instead of parsing the text again, and is rounded so that it can be passed back
+     * exactly as the cursor. The chats of login are passed as an array rather than joined:
+     * joined, the planner can pick a nested loop that runs the index scan again for every chat.
+     */
+    public static List<List<String>> searchMsgPage(Messenger esql, String login, String query, String cursorRank, int cursorId, int limit) throws SQLException{
+        if (cursorRank == null)
+            return esql.executeQueryAndReturnResult("SearchMsgs.first", SEARCH_MSGS + "ORDER BY rank DESC, msg_id DESC LIMIT ?", query, login, limit);
+        return esql.executeQueryAndReturnResult("SearchMsgs.next", SEARCH_MSGS + "WHERE (rank, msg_id) < (CAST(? AS numeric), ?) ORDER BY rank DESC, msg_id DESC LIMIT ?", query, login, cursorRank, cursorId, limit);
+    }//end
+
     /* Print the list of members of the chat
     */
     public static void ListChatMembers(Messenger esql, String login, int chat_id){
         if(!chatAccessPermission(esql, login, chat_id)){
-            System.out.println("Action denied: You are not a member of this chat");
+            esql.out.println("Action denied: You are not a member of this chat");
             return;
         }
         try{
             List<String> chatMembers= browseChatMember(esql, login, chat_id);
             int i = 0;
-            System.out.println("No.\t Members");
+            esql.out.println("No.\t Members");
             while (i < chatMembers.size()){
-                System.out.println(String.format("%d. %s",i+1, chatMembers.get(i)));
+                esql.out.println(String.format("%d. %s",i+1, chatMembers.get(i)));
                 ++i;
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
 
-    /* Return a list of String of the id of chat for certain chat_type 
+    /* Private chats of a user without a blocked member. The anti-join only probes the members
+     * of the user's own chats, through the chat_list primary key and the user_list_contains key.
+     * The plans benchmark of MessengerBench fails if this plan goes back to sequential scans of chat_list.
+     */
+    static final String BROWSE_PRIVATE_CHATS =
+            "SELECT CL.chat_id FROM chat_list CL JOIN chat C ON C.chat_id=CL.chat_id " +
+            "WHERE CL.member=? and C.chat_type='private' and NOT EXISTS (" +
+            "SELECT 1 FROM chat_list O JOIN user_list_contains UL ON UL.list_member=O.member " +
+            "WHERE O.chat_id=CL.chat_id and UL.list_id=(SELECT block_list FROM usr WHERE login=?))";
+
+    /* Return the ids of the chats of certain chat_type
     */
-    public static List<String> browseChats(Messenger esql, String login, String chat_type){
+    public static int[] browseChats(Messenger esql, String login, String chat_type){
         try{
-            String query = chat_type.equals("group")? String.format("SELECT chat_id FROM chat_list WHERE member='%s' and chat_id in (SELECT chat_id FROM chat WHERE chat_type='group')", login): String.format("SELECT chat_id FROM chat_list WHERE member='%s' and chat_id in( (SELECT chat_id FROM chat_list WHERE chat_id in ( SELECT chat_id FROM chat WHERE chat_type='private')) EXCEPT (SELECT chat_id FROM chat_list WHERE chat_id in(SELECT chat_id FROM chat WHERE chat_type='private') and member in (SELECT list_member FROM user_list_contains WHERE list_id=(SELECT block_list FROM usr WHERE login='%s'))))",login, login);
-            List<List<String>> chatList = esql.executeQueryAndReturnResult(query);
-            int i = 0;
-            List<String> result= new ArrayList<String>();
-            while(i<chatList.size())
-                result.add(chatList.get(i++).get(0).trim());
-            return result;
+            // private chats with a member on the user's block list are left out
+            return chat_type.equals("group")?
+                esql.queryInts("browseChats.group", "SELECT CL.chat_id FROM chat_list CL JOIN chat C ON C.chat_id=CL.chat_id WHERE CL.member=? and C.chat_type='group'", login):
+                esql.queryInts("browseChats.private", BROWSE_PRIVATE_CHATS, login, login);
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return null;
         }
     }//end
 
+    /* Chat summaries: chat_summary holds the last message (newest by msg_timestamp, msg_id as
+     * in ListChatMsgs), its sender and the number of messages of every chat with messages.
+     * Every statement writing MESSAGE updates the summary of its chat in the same statement
+     * through a data-modifying WITH, so no extra round trip is needed and a failed write
+     * changes neither. Messages written by other means need rebuildChatSummaries.
+     * The same statements NOTIFY a "chat_id msg_id kind" event per message on the
+     * ChatEvents channel, sent when they commit.
+     */
+
+    /* Wraps write, an INSERT or UPDATE of MESSAGE, so that the newest message it writes to a
+     * chat becomes the last message of the chat when it is newer than it, and countDelta is
+     * added to the message count for every message. An event of the given kind is published
+     * for every message, and the newest message of each sender becomes the sender's read
+     * watermark of the chat. The update count is the number of chats written to, 1 when one
+     * message was written.
+     */
+    static String withChatSummary(String write, int countDelta, String kind){
+        return withChatSummary(write, countDelta, kind, null);
+    }//end
+
+    /* As above, but the summary is written by the WITH query S and the statement is query,
+     * which can read the written messages from M
+     */
+    static String withChatSummary(String write, int countDelta, String kind, String query){
+        String summary =
+                "INSERT INTO chat_summary AS S (chat_id, last_msg_id, last_msg_timestamp, last_sender, msg_count) " +
+                "SELECT DISTINCT ON (M.chat_id) M.chat_id, M.msg_id, M.msg_timestamp, M.sender_login, " +
+                countDelta + " * count(*) OVER (PARTITION BY M.chat_id) " +
+                "FROM M CROSS JOIN LATERAL (SELECT " + notifyEvent(kind) + ") N " +
+                "ORDER BY M.chat_id, M.msg_timestamp DESC, M.msg_id DESC " +
+                "ON CONFLICT (chat_id) DO UPDATE SET msg_count=S.msg_count+EXCLUDED.msg_count, " +
+                "last_msg_id=CASE WHEN " + NEWER_THAN_LAST + " THEN EXCLUDED.last_msg_id ELSE S.last_msg_id END, " +
+                "last_msg_timestamp=CASE WHEN " + NEWER_THAN_LAST + " THEN EXCLUDED.last_msg_timestamp ELSE S.last_msg_timestamp END, " +
+                "last_sender=CASE WHEN " + NEWER_THAN_LAST + " THEN EXCLUDED.last_sender ELSE S.last_sender END";
+        return "WITH M AS (" + write + " RETURNING msg_id, msg_timestamp, sender_login, chat_id), " +
+                "R AS (UPDATE chat_list CL SET last_read_msg_id=W.msg_id, last_read_timestamp=W.msg_timestamp " +
+                "      FROM (SELECT DISTINCT ON (chat_id, sender_login) chat_id, sender_login, msg_id, msg_timestamp FROM M " +
+                "            ORDER BY chat_id, sender_login, msg_timestamp DESC, msg_id DESC) W " +
+                "      WHERE CL.chat_id=W.chat_id AND CL.member=W.sender_login " +
+                "      AND (CL.last_read_msg_id IS NULL OR (W.msg_timestamp, W.msg_id) > (CL.last_read_timestamp, CL.last_read_msg_id))) " +
+                (query == null ? summary : ", S AS (" + summary + ") " + query);
+    }//end
+
+    /* The pg_notify call publishing the event of kind for the message M
+     */
+    static String notifyEvent(String kind){
+        return "pg_notify('" + ChatEvents.CHANNEL + "', M.chat_id || ' ' || M.msg_id || ' " + kind + "')";
+    }//end
+
+    static final String NEWER_THAN_LAST =
+            "(S.last_msg_id IS NULL OR (EXCLUDED.last_msg_timestamp, EXCLUDED.last_msg_id) > (S.last_msg_timestamp, S.last_msg_id))";
+    // written only while the sender is a member of the chat, see the guarded writes below
+    static final String CREATE_MSG = withChatSummary(
+            "INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) SELECT ?, CURRENT_TIMESTAMP, ?, ? " +
+            "WHERE EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=? AND CL.member=?)", 1, ChatEvents.CREATED);
+    // inserts the summaries of the chats of the messages selected by %s, e.g. "WHERE chat_id=1"
+    static final String CHAT_SUMMARY_FROM_MESSAGES =
+            "INSERT INTO chat_summary(chat_id, last_msg_id, last_msg_timestamp, last_sender, msg_count) " +
+            "SELECT DISTINCT ON (chat_id) chat_id, msg_id, msg_timestamp, sender_login, count(*) OVER (PARTITION BY chat_id) " +
+            "FROM message %s ORDER BY chat_id, msg_timestamp DESC, msg_id DESC";
+
+    /* Recomputes every chat summary from MESSAGE, after messages were loaded or written
+     * without going through the statements above. Writers wait for the lock until it is done.
+     */
+    public static void rebuildChatSummaries(Messenger esql) throws SQLException{
+        esql.begin();
+        try{
+            esql.executeUpdate("rebuildChatSummaries.lock", "LOCK TABLE chat_summary IN EXCLUSIVE MODE");
+            esql.executeUpdate("rebuildChatSummaries.clear", "DELETE FROM chat_summary");
+            esql.executeUpdate("rebuildChatSummaries", String.format(CHAT_SUMMARY_FROM_MESSAGES, ""));
+            esql.commit();
+        }catch(SQLException e){
+            esql.rollback();
+            throw e;
+        }
+    }//end
+
+    /* Guarded writes: each statement carries its own permission check, so no
+     * separate permission query is needed and nothing can change between the
+     * check and the write. An update count of 0 means the action was denied.
+     * The permission checks run before the menus only decide what is shown,
+     * they are answered from the session and shared caches.
+     */
+    // an edit moves the message to the current time, so it may become the last of the chat
+    static final String EDIT_MSG = withChatSummary(
+            "UPDATE MESSAGE SET msg_text=?, msg_timestamp=CURRENT_TIMESTAMP WHERE msg_id=? AND sender_login=? " +
+            "AND EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=MESSAGE.chat_id AND CL.member=?)", 0, ChatEvents.EDITED);
+    // a query returning a row if the message was deleted, the summary is updated on the side:
+    // the count drops by one and the last message is looked up again among the other messages,
+    // the statement does not see its own delete
+    static final String DELETE_MSG =
+            "WITH M AS (DELETE FROM MESSAGE WHERE msg_id=? AND sender_login=? " +
+            "           AND EXISTS (SELECT 1 FROM chat_list CL WHERE CL.chat_id=MESSAGE.chat_id AND CL.member=?) RETURNING msg_id, chat_id), " +
+            "S AS (UPDATE chat_summary S SET msg_count=S.msg_count-1, (last_msg_id, last_msg_timestamp, last_sender)=(" +
+            "           SELECT L.msg_id, L.msg_timestamp, L.sender_login FROM message L WHERE L.chat_id=M.chat_id AND L.msg_id<>M.msg_id " +
+            "           ORDER BY L.msg_timestamp DESC, L.msg_id DESC LIMIT 1) FROM M WHERE S.chat_id=M.chat_id) " +
+            "SELECT " + notifyEvent(ChatEvents.DELETED) + " FROM M";
+    // the owner of a group chat adds one of the owner's contacts
+    static final String ADD_CHAT_MEMBER =
+            "INSERT INTO chat_list SELECT ?, ? FROM chat C WHERE C.chat_id=? AND C.init_sender=? AND C.chat_type='group' AND C.deleted_at IS NULL " +
+            "AND EXISTS (SELECT 1 FROM usr U JOIN user_list_contains L ON L.list_id=U.contact_list JOIN usr M ON M.login=L.list_member " +
+            "           WHERE U.login=? AND L.list_member=? AND M.deleted_at IS NULL)";
+    // the owner deletes a chat: its members are taken out at once, the reaper removes its messages
+    static final String DELETE_CHAT =
+            "WITH C AS (UPDATE chat SET deleted_at=CURRENT_TIMESTAMP WHERE chat_id=? AND init_sender=? AND deleted_at IS NULL RETURNING chat_id), " +
+            "L AS (DELETE FROM chat_list CL USING C WHERE CL.chat_id=C.chat_id) " +
+            "SELECT chat_id FROM C";
+    // the owner of a group chat removes anyone but the owner
+    static final String DELETE_CHAT_MEMBER =
+            "DELETE FROM chat_list CL USING chat C WHERE CL.chat_id=? AND CL.member=? " +
+            "AND C.chat_id=CL.chat_id AND C.init_sender=? AND C.chat_type='group' AND CL.member<>C.init_sender";
+
     /* Add new member to chat that you initiate.
      * User can only add people that in their contact list
      */
     public static void addToChat(Messenger esql, String login,int chat_id){
         if(!chatEditPermission(esql, login, chat_id)){
-            System.out.println("Permission denied: you are not the initial sender of the chat");
+            esql.out.println("Permission denied: you are not the initial sender of the chat");
             return;
         }
         if(!isChatGroup(esql, login, chat_id)){
-            System.out.println("Action denied: you can not add members to a private chat, you could start a new group chat");
+            esql.out.println("Action denied: you can not add members to a private chat, you could start a new group chat");
             return;
         }
         try{
             boolean keepIn=true;
             while(keepIn){
-                String query = String.format("SELECT list_member FROM user_list_contains WHERE list_id=(SELECT contact_list FROM usr WHERE login ='%s') and list_member not in (SELECT member FROM chat_list WHERE chat_id=%d)", login, chat_id);
-                List<List<String>> contactNotInChat = esql.executeQueryAndReturnResult(query);
+                List<List<String>> contactNotInChat = esql.executeQueryAndReturnResult("addToChat.candidates", "SELECT UL.list_member FROM user_list_contains UL JOIN usr M ON M.login=UL.list_member AND M.deleted_at IS NULL WHERE UL.list_id=(SELECT contact_list FROM usr WHERE login =?) and UL.list_member not in (SELECT member FROM chat_list WHERE chat_id=?)", login, chat_id);
                 int i = 0;
-                System.out.println("-------------------------");
-                System.out.println("No.\tContact not in the chat");
-                System.out.println(".........................");                
+                esql.out.println("-------------------------");
+                esql.out.println("No.\tContact not in the chat");
+                esql.out.println(".........................");                
                 while(i < contactNotInChat.size()){
-                    System.out.println(String.format("%d. %s", i+1, contactNotInChat.get(i).get(0).trim()));
-                    contactNotInChat.get(i).get(0).replace("'","\\'");
+                    esql.out.println(String.format("%d. %s", i+1, contactNotInChat.get(i).get(0)));
                     ++i;
                 }
-                System.out.println(".........................");
-                System.out.println("0. Back");
-                System.out.println("Please choose the No. of contact you want to add");
-                int choice = readChoice();
+                esql.out.println(".........................");
+                esql.out.println("0. Back");
+                esql.out.println("Please choose the No. of contact you want to add");
+                int choice = readChoice(esql);
                 if(choice<0 || choice>contactNotInChat.size()){
-                    System.out.print("Action denied: Wrong input, please input the serial number in the menu\n.........................\n");
+                    esql.out.print("Action denied: Wrong input, please input the serial number in the menu\n.........................\n");
                 }else if (choice == 0){
                     keepIn=false;
                 }else{
-                    String query1 = String.format("INSERT INTO chat_list(chat_id, member) VALUES(%d,'%s')",chat_id, contactNotInChat.get(choice-1).get(0).trim());
-                    esql.executeUpdate(query1);
-                    System.out.println(String.format("Action Permitted: You have successfully add %s to chat %d", contactNotInChat.get(choice-1).get(0).trim(), chat_id));
+                    if (esql.executeUpdate("addToChat.guarded", ADD_CHAT_MEMBER, chat_id, contactNotInChat.get(choice-1).get(0), chat_id, login, login, contactNotInChat.get(choice-1).get(0)) == 0){
+                        esql.out.println("Permission denied: you are not the initial sender of this group chat, or the user is not in your contact list");
+                        continue;
+                    }
+                    SessionCache.invalidate(contactNotInChat.get(choice-1).get(0));
+                    esql.out.println(String.format("Action Permitted: You have successfully add %s to chat %d", contactNotInChat.get(choice-1).get(0), chat_id));
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -960,45 +2238,48 @@ public class Messenger {
      */
     public static void deleteFromChat(Messenger esql, String login, int chat_id){
         if(!chatEditPermission(esql, login, chat_id)){
-            System.out.println("Permission denied: you are not the initial sender of the chat");
+            esql.out.println("Permission denied: you are not the initial sender of the chat");
             return;
         }
         if(!isChatGroup(esql, login, chat_id)){
-            System.out.println("Action denied: you can not delete members in a private chat, but you can delete the chat.");
+            esql.out.println("Action denied: you can not delete members in a private chat, but you can delete the chat.");
             return;
         }
         try{
             boolean keepIn=true;
             while(keepIn){
-                System.out.println("Member in this chat");
-                System.out.println(".........................");
+                esql.out.println("Member in this chat");
+                esql.out.println(".........................");
                 List<String> memberList=browseChatMember(esql, login, chat_id);
                 int i = 0;
                 while(i<memberList.size()){
-                    System.out.println(String.format("%d. %s", i+1, memberList.get(i)));
+                    esql.out.println(String.format("%d. %s", i+1, memberList.get(i)));
                     ++i;
                 }
-                System.out.println(".........................");
-                System.out.println("0. back to the privious menu");
-                System.out.println("Please choose the member you want to remove from the chat:");
-                int choice = readChoice();
+                esql.out.println(".........................");
+                esql.out.println("0. back to the privious menu");
+                esql.out.println("Please choose the member you want to remove from the chat:");
+                int choice = readChoice(esql);
                 if(0>choice ||choice>memberList.size())
-                    System.out.print("Action denied: Wrong input, please input the serial number in the menu\n.........................\n");
+                    esql.out.print("Action denied: Wrong input, please input the serial number in the menu\n.........................\n");
                 else if (choice==0)
                     keepIn=false;
-                else if (login.equals(memberList.get(choice-1).trim())){
-                    System.out.println("Action denied: You can not delete yourself from a chat initiated by you");  
-                    System.out.println(".........................");
+                else if (login.equals(memberList.get(choice-1))){
+                    esql.out.println("Action denied: You can not delete yourself from a chat initiated by you");  
+                    esql.out.println(".........................");
                 }
                 else{
-                    String query=String.format("DELETE FROM chat_list WHERE chat_id=%d and member='%s'", chat_id, memberList.get(choice-1).replace("'","\\'"));
-                    esql.executeUpdate(query);
-                    System.out.println(String.format("Action Permitted: You have deleted %s from this chat", memberList.get(choice-1)));
-                    System.out.println("-------------------------");
+                    if (esql.executeUpdate("deleteFromChat", DELETE_CHAT_MEMBER, chat_id, memberList.get(choice-1), login) == 0){
+                        esql.out.println("Permission denied: you are not the initial sender of this group chat");
+                        continue;
+                    }
+                    SessionCache.invalidate(memberList.get(choice-1));
+                    esql.out.println(String.format("Action Permitted: You have deleted %s from this chat", memberList.get(choice-1)));
+                    esql.out.println("-------------------------");
                 }
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -1006,24 +2287,29 @@ public class Messenger {
     //Delete chat
     public static void DeleteChat(Messenger esql,String login, int chat_id){
         if(!chatEditPermission(esql, login, chat_id)){
-            System.out.println("Permission denied: you are not the initial sender of the chat");
+            esql.out.println("Permission denied: you are not the initial sender of the chat");
             return;
         }
         try{
-            System.out.print("If you delete the chat, all the message(s) in the chat will be deleted, and other members in this chat will also be kicked out.");
-            System.out.print("Are you sure you want delete the chat?(y/n):");
-            String choice = in.readLine();
+            esql.out.print("If you delete the chat, all the message(s) in the chat will be deleted, and other members in this chat will also be kicked out.");
+            esql.out.print("Are you sure you want delete the chat?(y/n):");
+            String choice = esql.in.readLine();
             if(choice.equals("n"))
-                System.out.print("This chat survived:)");
+                esql.out.print("This chat survived:)");
             else if (!choice.equals("y"))
-                System.out.println("Fail to delete the chat due to unreconized choice");
+                esql.out.println("Fail to delete the chat due to unreconized choice");
             else{
-                String query = String.format("DELETE FROM chat WHERE chat_id=%d",chat_id);
-                esql.executeUpdate(query);
-                System.out.println("Chat has been deleted.");
+                if (esql.executeQuery("DeleteChat", DELETE_CHAT, chat_id, login) == 0){
+                    esql.out.println("Permission denied: you are not the initial sender of the chat");
+                    return;
+                }
+                SessionCache.invalidateChat(chat_id);
+                CHATS.remove(chat_id);
+                wakeReaper();
+                esql.out.println("Chat has been deleted.");
             }
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -1033,34 +2319,78 @@ public class Messenger {
     public static List<String> browseChatMember(Messenger esql, String login, int chat_id){
         try{
             if(!chatAccessPermission(esql, login, chat_id)){
-                System.out.println("Permission denied: you are not a member of the chat");
+                esql.out.println("Permission denied: you are not a member of the chat");
                 return null;
             }
-            String query = String.format("SELECT member FROM chat_list WHERE chat_id=%d", chat_id);
-            List<List<String>> memberList = esql.executeQueryAndReturnResult(query);
+            List<List<String>> memberList = esql.executeQueryAndReturnResult("browseChatMember", "SELECT member FROM chat_list WHERE chat_id=?", chat_id);
             int i = 0;
             List<String> result= new ArrayList<String>();
             while(i<memberList.size())
-                result.add(memberList.get(i++).get(0).trim());
+                result.add(memberList.get(i++).get(0));
             return result;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return null;
         }
     }//end
 
+    /* Return the members of each of the chats in chat_id_list that login is a member of,
+     * by chat_id. Chats login is not a member of are left out, so the permission check of
+     * browseChatMember is part of the same single query.
+     */
+    public static Map<Integer, List<String>> browseChatMembers(Messenger esql, String login, int[] chat_id_list) throws SQLException{
+        final Map<Integer, List<String>> result = new HashMap<Integer, List<String>>();
+        if (chat_id_list.length == 0) return result;
+        StringBuilder ids = new StringBuilder();
+        for (int chat_id : chat_id_list){
+            if (ids.length() > 0) ids.append(',');
+            ids.append(chat_id);
+        }
+        // the ids are bound as one string, the driver has no array parameters
+        esql.forEachRow("browseChatMembers",
+                "SELECT CL.chat_id, CL.member FROM chat_list CL " +
+                "WHERE CL.chat_id = ANY (CAST(string_to_array(?, ',') AS integer[])) " +
+                "AND EXISTS (SELECT 1 FROM chat_list ME WHERE ME.chat_id=CL.chat_id AND ME.member=?) " +
+                "ORDER BY CL.chat_id, CL.member",
+                new Row.Handler(){
+                    public void row(Row row) throws SQLException {
+                        Integer chat_id = row.getInt(1);
+                        List<String> members = result.get(chat_id);
+                        if (members == null){
+                            members = new ArrayList<String>();
+                            result.put(chat_id, members);
+                        }
+                        members.add(row.getString(2));
+                    }
+                },
+                ids.toString(), login);
+        return result;
+    }//end
+
+    /* Return the chat_type and init_sender of a chat, null if there is no such chat.
+     * Chat rows are kept in the CHATS cache shared by every session.
+     */
+    public static List<String> browseChat(Messenger esql, int chat_id) throws SQLException{
+        List<String> chat = CHATS.get(chat_id);
+        if (chat != null) return chat;
+        List<List<String>> rows = esql.executeQueryAndReturnResult("browseChat", "SELECT chat_type, init_sender FROM chat WHERE chat_id=? AND deleted_at IS NULL", chat_id);
+        if (rows.size() == 0) return null;
+        CHATS.put(chat_id, rows.get(0));
+        return rows.get(0);
+    }//end
+
     /* Return the truth value about if the user is the initial sender of the chat
      * If return true, then the user is the initial sender and would have the authority to add\delete other contacter in the chat and even delete the chat.
      * If return false, then the user has not authority to do such things listed above.
      */
     public static boolean chatEditPermission(Messenger esql, String login, int chat_id){
         try{
-            String query = String.format("SELECT * FROM chat WHERE init_sender='%s' and chat_id=%d", login, chat_id);
-            int isSender=esql.executeQuery(query);
-            if(isSender>0)return true;
-            return false;
+            SessionCache cache = esql.session(login);
+            if (cache != null) return cache.isOwner(chat_id);
+            List<String> chat = browseChat(esql, chat_id);
+            return chat != null && chat.get(1).equals(login);
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;       
         }   
     }//end
@@ -1071,12 +2401,13 @@ public class Messenger {
      */
     public static boolean chatAccessPermission(Messenger esql, String login, int chat_id){
         try{
-            String query = String.format("SELECT * FROM chat_list WHERE chat_id=%d and member='%s'", chat_id, login);
-            int isMember=esql.executeQuery(query);
+            SessionCache cache = esql.session(login);
+            if (cache != null) return cache.isMember(chat_id);
+            int isMember=esql.executeQuery("chatAccessPermission", "SELECT 1 FROM chat_list WHERE chat_id=? and member=?", chat_id, login);
             if(isMember>0)return true;
             return false;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;       
         }   
     }//end
@@ -1087,12 +2418,13 @@ public class Messenger {
      */
     public static boolean isChatGroup(Messenger esql, String login, int chat_id){
         try{
-            String query = String.format("SELECT * FROM chat WHERE chat_id=%d and chat_type='group'", chat_id);
-            int isGroup=esql.executeQuery(query);
-            if(isGroup>0)return true;
-            return false;
+            SessionCache cache = esql.session(login);
+            String chat_type = cache == null ? null : cache.chatType(chat_id);
+            if (chat_type != null) return chat_type.equals("group");
+            List<String> chat = browseChat(esql, chat_id);
+            return chat != null && chat.get(0).equals("group");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;       
         }   
     }//end
@@ -1100,91 +2432,79 @@ public class Messenger {
     //Add people to your contact list
     public static void addToContact(Messenger esql, String user){
         try{
-            System.out.print("\tEnter the user login you want to add to contact list: ");
-            String contact_login = in.readLine();
+            esql.out.print("\tEnter the user login you want to add to contact list: ");
+            String contact_login = esql.in.readLine();
 
             if (contact_login.equals(user)){
-                System.out.println("You cannot add yourself to your contact list.");
+                esql.out.println("You cannot add yourself to your contact list.");
                 return;
             }
 
             //Tell whether the user exists in user list 
-            String query_usr = String.format("SELECT * FROM USR WHERE login = '%s'", contact_login);
-
-            int userNum = esql.executeQuery(query_usr);
-            if (userNum <= 0){
-                System.out.println("This user does NOT exist.");
+            if (!userExists(esql, contact_login)){
+                esql.out.println("This user does NOT exist.");
                 return;
             }
             //Tell whether the user exists in contact list  
             if (isInContactList(esql, user, contact_login)){        
-                System.out.println("This user already exists in your contact list.");
+                esql.out.println("This user already exists in your contact list.");
                 return;
             }
             //If the user exists in block list    
             if (isInBlockList(esql, user, contact_login)){      
-                String query_listid0 = String.format("SELECT block_list FROM USR WHERE login='%s'", user);
-                int listID = Integer.parseInt(esql.executeQueryAndReturnResult(query_listid0).get(0).get(0));
-                String query_delete = String.format("DELETE FROM user_list_contains WHERE list_member='%s' AND list_id='%d'", contact_login, listID);
-                esql.executeUpdate(query_delete);
-                System.out.println(contact_login + " is deleted from your block list!");
+                int listID = listId(esql, user, "block");
+                esql.executeUpdate("removeFromList", "DELETE FROM user_list_contains WHERE list_member=? AND list_id=?", contact_login, listID);
+                esql.out.println(contact_login + " is deleted from your block list!");
             }
             //Add to contact list   
-            String query_listid = String.format("SELECT contact_list FROM USR WHERE login='%s'", user);
-            int list_id = Integer.parseInt(esql.executeQueryAndReturnResult(query_listid).get(0).get(0));
-            String query_add = String.format("INSERT INTO user_list_contains(list_id, list_member) VALUES(%d, '%s')", list_id, contact_login);
-            esql.executeUpdate(query_add);
-            System.out.println(contact_login+" is added to your contact list!");    
+            int list_id = listId(esql, user, "contact");
+            esql.executeUpdate("addToList", "INSERT INTO user_list_contains(list_id, list_member) VALUES(?, ?)", list_id, contact_login);
+            SessionCache.invalidate(user);
+            esql.out.println(contact_login+" is added to your contact list!");    
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
         }
     }//end
 
     //Add people to your block list
     public static void addToBlock(Messenger esql, String user){
         try{
-            System.out.print("\tEnter the user login you want to add to block list: ");
-            String block_login = in.readLine();
+            esql.out.print("\tEnter the user login you want to add to block list: ");
+            String block_login = esql.in.readLine();
 
             if (block_login.equals(user)){
-                System.out.println("You cannot add yourself to your block list.");
+                esql.out.println("You cannot add yourself to your block list.");
                 return;
             }
 
             //Tell whether the user exists in user list 
-            String query_usr = String.format("SELECT * FROM USR WHERE login = '%s'", block_login);
-
-            int userNum = esql.executeQuery(query_usr);
-            if (userNum <= 0){
-                System.out.println("This user does NOT exist.");
+            if (!userExists(esql, block_login)){
+                esql.out.println("This user does NOT exist.");
                 return;
             }
 
             //Tell whether the user exists in block list    
             if (isInBlockList(esql, user, block_login)){    
-                System.out.println("This user already exists in your block list.");
+                esql.out.println("This user already exists in your block list.");
                 return;
             }
 
             //If the user exists in contact list    
             if (isInContactList(esql, user, block_login)){      
-                String query_listid0 = String.format("SELECT contact_list FROM USR WHERE login='%s'", user);
-                int listID = Integer.parseInt(esql.executeQueryAndReturnResult(query_listid0).get(0).get(0));
-                String query_delete = String.format("DELETE FROM user_list_contains WHERE list_member='%s' AND list_id='%d'", block_login, listID);
-                esql.executeUpdate(query_delete);
-                System.out.println(block_login + " is deleted from your contact list!");
+                int listID = listId(esql, user, "contact");
+                esql.executeUpdate("removeFromList", "DELETE FROM user_list_contains WHERE list_member=? AND list_id=?", block_login, listID);
+                esql.out.println(block_login + " is deleted from your contact list!");
             }
 
             //Add to block list 
-            String query_listid = String.format("SELECT block_list FROM USR WHERE login='%s'", user);
-            int list_id = Integer.parseInt(esql.executeQueryAndReturnResult(query_listid).get(0).get(0));
-            String query_add = String.format("INSERT INTO user_list_contains(list_id, list_member) VALUES(%d, '%s')", list_id, block_login);
-            esql.executeUpdate(query_add);
-            System.out.println(block_login + " is added to your block list!");  
+            int list_id = listId(esql, user, "block");
+            esql.executeUpdate("addToList", "INSERT INTO user_list_contains(list_id, list_member) VALUES(?, ?)", list_id, block_login);
+            SessionCache.invalidate(user);
+            esql.out.println(block_login + " is added to your block list!");  
 
 
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
         }
     }//end
 
@@ -1193,14 +2513,14 @@ public class Messenger {
         try{
             List<List<String>> contacts = browseContact(esql, login, "contact");
             int i = 0;
-            System.out.println("No. User\t\tStatus Message\n-------------------------");
+            esql.out.println("No. User\t\tStatus Message\n-------------------------");
             while(i<contacts.size()){
-                System.out.println(String.format("%d. %s\t\t%s",i+1, contacts.get(i).get(0).trim(), contacts.get(i).get(1).trim()));
+                esql.out.println(String.format("%d. %s\t\t%s",i+1, contacts.get(i).get(0), contacts.get(i).get(1)));
                 ++i;
             }
-            System.out.println("-------------------------");
+            esql.out.println("-------------------------");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
     }//end
@@ -1210,14 +2530,14 @@ public class Messenger {
         try{
             List<List<String>> contacts = browseContact(esql, login, "block");
             int i = 0;
-            System.out.println("No. User\t\tStatus Message\n-------------------------");
+            esql.out.println("No. User\t\tStatus Message\n-------------------------");
             while(i<contacts.size()){
-                System.out.println(String.format("%d. %s\t\t%s",i+1, contacts.get(i).get(0).trim(), contacts.get(i).get(1).trim()));
+                esql.out.println(String.format("%d. %s\t\t%s",i+1, contacts.get(i).get(0), contacts.get(i).get(1)));
                 ++i;
             }
-            System.out.println("-------------------------");
+            esql.out.println("-------------------------");
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;
         }
 
@@ -1226,18 +2546,18 @@ public class Messenger {
     //Delete contact from contact list
     public static void DeleteContact(Messenger esql, String login){
         try{
-            System.out.print("\tEnter the user login you want to remove from contact_list:");
-            String contacter = in.readLine();
+            esql.out.print("\tEnter the user login you want to remove from contact_list:");
+            String contacter = esql.in.readLine();
             if(isInContactList(esql, login, contacter)){
-                String query = String.format("DELETE FROM user_list_contains WHERE list_member='%s' and list_id=(SELECT contact_list FROM usr WHERE login='%s')",contacter, login);
-                esql.executeUpdate(query);
-                System.out.println ("The user has been deleted from your contact list!");
+                esql.executeUpdate("removeFromList", "DELETE FROM user_list_contains WHERE list_member=? AND list_id=?", contacter, listId(esql, login, "contact"));
+                SessionCache.invalidate(login);
+                esql.out.println ("The user has been deleted from your contact list!");
                 return;
 			}
-            System.out.println("This user is not in your contact list");
+            esql.out.println("This user is not in your contact list");
             return;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;     
         }
     }//end
@@ -1245,78 +2565,120 @@ public class Messenger {
     //Delete contact form block list
     public static void DeleteBlock(Messenger esql, String login){
         try{
-            System.out.print("\tEnter the user login you want to remove from block_list:");
-            String contacter = in.readLine();
+            esql.out.print("\tEnter the user login you want to remove from block_list:");
+            String contacter = esql.in.readLine();
             if(isInBlockList(esql, login, contacter)){
-                String query = String.format("DELETE FROM user_list_contains WHERE list_member='%s' and list_id=(SELECT block_list FROM usr WHERE login='%s')",contacter, login);
-                esql.executeUpdate(query);
-                System.out.println ("The user has been deleted from your block list!");
+                esql.executeUpdate("removeFromList", "DELETE FROM user_list_contains WHERE list_member=? AND list_id=?", contacter, listId(esql, login, "block"));
+                SessionCache.invalidate(login);
+                esql.out.println ("The user has been deleted from your block list!");
                 return;
 			}
-            System.out.println("This user is not in your block list");
+            esql.out.println("This user is not in your block list");
             return;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return;     
         }
     }//end
 
+    /* Return the id of the user's block or contact list, from the session cache when there is one
+     */
+    public static int listId(Messenger esql, String login, String list_type) throws SQLException{
+        SessionCache cache = esql.session(login);
+        if (cache != null) return cache.listId(list_type);
+        // list_type names a column, so each list gets its own statement
+        String column = list_type.equals("block") ? "block_list" : "contact_list";
+        return Integer.parseInt(esql.executeQueryAndReturnResult("listId." + list_type, String.format("SELECT %s FROM USR WHERE login=?", column), login).get(0).get(0));
+    }//end
+
+    /* Return the truth value about if a user with this login exists.
+     * Found users are kept in the USERS cache shared by every session.
+     */
+    public static boolean userExists(Messenger esql, String login) throws SQLException{
+        if (USERS.get(login) != null) return true;
+        List<List<String>> rows = esql.executeQueryAndReturnResult("userExists", "SELECT login, status FROM USR WHERE login = ? AND deleted_at IS NULL", login);
+        if (rows.size() == 0) return false;
+        USERS.put(login, rows.get(0));
+        return true;
+    }//end
+
     /* BrowseContact return a list of 2 string that contains the user's login and the status in the list.
      * Need to input the user's login and the type of list (contact/block) you would like to browse.
      */
     public static List<List<String>> browseContact(Messenger esql, String login, String list_type){
         try{
-            String query = String.format("SELECT U2.login, U2.status FROM usr U1,usr U2,user_list_contains UL WHERE U1.login='%s' and U1.%s_list=UL.list_id and UL.list_member=U2.login",login, list_type);
-            List<List<String>> memberList = esql.executeQueryAndReturnResult(query);
-            int i = 0;
-            while(i<memberList.size()){
-                memberList.get(i).get(0).replace("'","\\'");
-                memberList.get(i++).get(1).replace("'","\\'");
+            // answered from the shared usr cache when every member of the list is in it
+            SessionCache cache = esql.session(login);
+            if (cache != null){
+                List<List<String>> memberList = new ArrayList<List<String>>();
+                for (String member : cache.listMembers(list_type)){
+                    List<String> user = USERS.get(member);
+                    if (user == null) break;
+                    memberList.add(user);
+                }
+                if (memberList.size() == cache.listMembers(list_type).size())
+                    return memberList;
             }
+            List<List<String>> memberList = esql.executeQueryAndReturnResult("browseContact", "SELECT U.login, U.status FROM user_list_contains UL, usr U WHERE UL.list_id=? and UL.list_member=U.login and U.deleted_at IS NULL", listId(esql, login, list_type));
+            for (List<String> user : memberList)
+                USERS.put(user.get(0), user);
             return memberList;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return null;
         }
     }//end
 
     //return list of message for certian chat
-    public static List<String> ListMsgs(Messenger esql, String user, int chat_id_opt){
+    //one query numbers the user's messages with row_number() and returns their ids with them
+    public static int[] ListMsgs(Messenger esql, String user, int chat_id_opt){
         try{
-            String query = String.format("SELECT msg_id FROM message WHERE sender_login='%s' AND chat_id='%d'", user, chat_id_opt);
-            String query_print = String.format("CREATE SEQUENCE t_seq; SELECT nextval('t_seq') AS Number, REPLACE(sender_login, ' ', '') AS Author, DATE(msg_timestamp) AS Date, SUBSTRING(msg_text, 1, 18) AS Text FROM message WHERE sender_login='%s' AND chat_id='%d'; DROP SEQUENCE t_seq", user, chat_id_opt);
-            List<List<String>> msgList = esql.executeQueryAndReturnResult(query);
-            esql.executeQueryAndPrintResult(query_print);
-            List<String> result = new ArrayList<String>();
-            for (int i = 0; i < msgList.size(); ++i)
-                result.add(msgList.get(i).get(0).trim());
-            return result;
+            final int[][] ids = {new int[16]};
+            final int[] count = {0};
+            final PrintStream out = esql.out;
+            esql.forEachRow("ListMsgs",
+                    "SELECT row_number() OVER (ORDER BY msg_timestamp, msg_id), sender_login, DATE(msg_timestamp), SUBSTRING(msg_text, 1, 18), msg_id " +
+                    "FROM message WHERE sender_login=? AND chat_id=? ORDER BY msg_timestamp, msg_id",
+                    new Row.Handler(){
+                        public void row(Row msg) throws SQLException {
+                            if (count[0] == 0)
+                                out.println("number\tauthor\tdate\ttext\t");
+                            out.println(String.format("%d\t%s\t%s\t%s\t", msg.getLong(1), msg.getString(2), msg.getString(3), msg.getString(4)));
+                            if (count[0] == ids[0].length)
+                                ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+                            ids[0][count[0]++] = msg.getInt(5);
+                        }
+                    },
+                    user, chat_id_opt);
+            return Arrays.copyOf(ids[0], count[0]);
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return null;
         }
     }//end
 
     public static boolean isInContactList(Messenger esql, String login, String contacter){
         try{
-            String query = String.format("SELECT UL.* FROM usr, user_list_contains UL WHERE usr.login='%s' and usr.contact_list=UL.list_id and UL.list_member='%s'", login, contacter);
-            int ifexist=esql.executeQuery(query);
+            SessionCache cache = esql.session(login);
+            if (cache != null) return cache.isContact(contacter);
+            int ifexist=esql.executeQuery("isInContactList", "SELECT 1 FROM usr, user_list_contains UL WHERE usr.login=? and usr.contact_list=UL.list_id and UL.list_member=?", login, contacter);
             if(ifexist>0)return true;
             return false;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;       
         }
     }//end
 
     public static boolean isInBlockList(Messenger esql, String login, String contacter){
         try{
-            String query = String.format("SELECT UL.* FROM usr, user_list_contains UL WHERE usr.login='%s' and usr.block_list=UL.list_id and UL.list_member='%s'", login, contacter);
-            int ifexist=esql.executeQuery(query);
+            SessionCache cache = esql.session(login);
+            if (cache != null) return cache.isBlocked(contacter);
+            int ifexist=esql.executeQuery("isInBlockList", "SELECT 1 FROM usr, user_list_contains UL WHERE usr.login=? and usr.block_list=UL.list_id and UL.list_member=?", login, contacter);
             if(ifexist>0)return true;
             return false;
         }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
             return false;       
         }
     }
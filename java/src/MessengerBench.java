@@ -0,0 +1,564 @@
+/*
+ * Benchmarks for the Messenger data-access paths
+ * ==============================================
+ *
+ * Runs against the same database as Messenger, see java/scripts/bench.sh.
+ * Every benchmark seeds its own rows under the bench_user account and removes
+ * them again when it is done.
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Simple wall-clock benchmarks for Messenger. Each benchmark is selected by
+ * name on the command line, all of them run when no name is given.
+ *
+ */
+public class MessengerBench {
+
+    // login owning every row created by the benchmarks
+    static final String BENCH_USER = "bench_user";
+
+    // chat sizes used to check how page cost grows with chat size
+    static final int[] CHAT_SIZES = {1000, 10000, 100000, 1000000};
+
+    // number of timed repetitions per measurement
+    static final int ROUNDS = 20;
+
+    public static void main (String[] args) {
+        if (args.length < 3) {
+            System.err.println (
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    MessengerBench.class.getName () +
+                    " <dbname> <port> <user> [benchmark...]");
+            return;
+        }//end if
+
+        Messenger esql = null;
+        try{
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            esql = new Messenger (args[0], args[1], args[2], "");
+            setUp(esql);
+
+            if (selected(args, "chatmsgs")) benchChatMsgs(esql);
+            if (selected(args, "listchat")) benchListChat(esql);
+            if (selected(args, "register")) benchRegister(esql);
+            if (selected(args, "ingest")) benchIngest(esql);
+            if (selected(args, "guarded")) benchGuarded(esql);
+            if (selected(args, "search")) benchSearch(esql);
+            if (selected(args, "storage")) benchStorage(esql);
+            if (selected(args, "mapping")) benchMapping(esql);
+            if (selected(args, "plans")) checkPlans(esql);
+        }catch(Exception e){
+            System.err.println (e.getMessage ());
+        }finally{
+            if (esql != null){
+                try{
+                    tearDown(esql);
+                }catch(Exception e){
+                    System.err.println (e.getMessage ());
+                }
+                esql.cleanup ();
+            }
+        }
+    }//end main
+
+    /* Return true if the benchmark was named on the command line, or if none was named
+    */
+    static boolean selected(String[] args, String name){
+        if (args.length == 3) return true;
+        for (int i = 3; i < args.length; ++i)
+            if (args[i].equals(name)) return true;
+        return false;
+    }//end
+
+    /* Creates the bench_user account the seeded rows belong to
+    */
+    static void setUp(Messenger esql) throws SQLException {
+        tearDown(esql);
+        esql.executeUpdate("CreateUser", Messenger.CREATE_USER, "bench", BENCH_USER, "bench");
+    }//end
+
+    /* Removes bench_user and everything that was seeded for it
+    */
+    static void tearDown(Messenger esql) throws SQLException {
+        esql.executeUpdate(String.format("DELETE FROM chat WHERE init_sender='%s'", BENCH_USER));
+        deleteUsers(esql, BENCH_USER);
+    }//end
+
+    /* Deletes the users whose login matches pattern together with their lists
+    */
+    static void deleteUsers(Messenger esql, String pattern) throws SQLException {
+        esql.executeUpdate(String.format("WITH D AS (DELETE FROM usr WHERE login LIKE '%s' RETURNING block_list, contact_list) DELETE FROM user_list WHERE list_id IN (SELECT block_list FROM D UNION ALL SELECT contact_list FROM D)", pattern));
+    }//end
+
+    /* Creates a group chat owned by bench_user holding size messages
+     * @return the chat_id of the new chat
+    */
+    static int seedChat(Messenger esql, int size) throws SQLException {
+        return seedChat(esql, size, BENCH_USER);
+    }//end
+
+    /* Creates a group chat owned by owner holding size messages of owner
+     * @return the chat_id of the new chat
+    */
+    static int seedChat(Messenger esql, int size, String owner) throws SQLException {
+        int chat_id;
+        esql.borrow();
+        try{
+            esql.executeUpdate(String.format("INSERT INTO chat(chat_type,init_sender) VALUES ('group','%s')", owner));
+            chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
+        }finally{
+            esql.release();
+        }
+        esql.executeUpdate(String.format("INSERT INTO chat_list VALUES(%d,'%s')", chat_id, owner));
+        esql.executeUpdate(String.format("INSERT INTO message(msg_text, msg_timestamp, sender_login, chat_id) SELECT 'bench message ' || g, CURRENT_TIMESTAMP - g * interval '1 second', '%s', %d FROM generate_series(1,%d) g", owner, chat_id, size));
+        esql.executeUpdate(String.format(Messenger.CHAT_SUMMARY_FROM_MESSAGES, "WHERE chat_id=" + chat_id));
+        esql.executeUpdate("ANALYZE message");
+        return chat_id;
+    }//end
+
+    /* Average milliseconds of ROUNDS calls of task, after one warm-up call
+    */
+    static double time(Task task) throws Exception {
+        task.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; ++i)
+            task.run();
+        return (System.nanoTime() - start) / 1e6 / ROUNDS;
+    }//end
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    // row handler of the timed queries whose rows are not used
+    static final Row.Handler SKIP_ROWS = new Row.Handler(){
+        public void row(Row row){
+        }
+    };
+
+    /* Cost of showing the first and the 50th page of a chat, full load vs keyset paging
+    */
+    static void benchChatMsgs(final Messenger esql) throws Exception {
+        System.out.println("ListChatMsgs page load (ms)");
+        System.out.println("chat size\tfull load\tkeyset first\tkeyset page 50");
+        for (int n = 0; n < CHAT_SIZES.length; ++n){
+            final int chat_id = seedChat(esql, CHAT_SIZES[n]);
+
+            double full = time(new Task(){ public void run() throws Exception {
+                esql.executeQueryAndReturnResult(String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id=%d ORDER BY msg_timestamp DESC;", chat_id));
+            }});
+            double first = time(new Task(){ public void run() throws Exception {
+                Messenger.fetchChatMsgPage(esql, chat_id, null, 0, Messenger.MSG_PAGE_SIZE, SKIP_ROWS);
+            }});
+            // cursor of the 49th page, so the timed call loads page 50
+            List<List<String>> skip = esql.executeQueryAndReturnResult(String.format("SELECT msg_id, msg_timestamp FROM message WHERE chat_id=%d ORDER BY msg_timestamp DESC, msg_id DESC OFFSET %d LIMIT 1", chat_id, 49 * Messenger.MSG_PAGE_SIZE - 1));
+            final int cursorId = Integer.parseInt(skip.get(0).get(0));
+            final Timestamp cursorTime = Timestamp.valueOf(skip.get(0).get(1));
+            double deep = time(new Task(){ public void run() throws Exception {
+                Messenger.fetchChatMsgPage(esql, chat_id, cursorTime, cursorId, Messenger.MSG_PAGE_SIZE, SKIP_ROWS);
+            }});
+
+            System.out.println(String.format("%d\t\t%.3f\t\t%.3f\t\t%.3f", CHAT_SIZES[n], full, first, deep));
+            esql.executeUpdate(String.format("DELETE FROM chat WHERE chat_id=%d", chat_id));
+        }
+    }//end
+
+    /* Logins of the users in the most chats of the loaded chat_list data
+    */
+    static List<String> busiestUsers(Messenger esql, int count) throws SQLException {
+        List<List<String>> rows = esql.executeQueryAndReturnResult(String.format("SELECT member FROM chat_list GROUP BY member ORDER BY count(*) DESC LIMIT %d", count));
+        List<String> result = new ArrayList<String>();
+        for (List<String> row : rows)
+            result.add(row.get(0));
+        return result;
+    }//end
+
+    /* ListChat round trips and latency: browseChats + browseChatMember per chat vs browseChatSummaries
+    */
+    static void benchListChat(final Messenger esql) throws Exception {
+        System.out.println("ListChat for the busiest users of chat_list.csv");
+        System.out.println("login		chats	per-chat trips	per-chat ms	summary trips	summary ms");
+        for (final String login : busiestUsers(esql, 10)){
+            final int[] chats = new int[1];
+            long before = esql.statementCount();
+            double perChat = time(new Task(){ public void run() throws Exception {
+                int[] privateChat = Messenger.browseChats(esql, login, "private");
+                int[] groupChat = Messenger.browseChats(esql, login, "group");
+                for (int chat_id : privateChat)
+                    Messenger.browseChatMember(esql, login, chat_id);
+                for (int chat_id : groupChat)
+                    Messenger.browseChatMember(esql, login, chat_id);
+                chats[0] = privateChat.length + groupChat.length;
+            }});
+            long perChatTrips = (esql.statementCount() - before) / (ROUNDS + 1);
+
+            before = esql.statementCount();
+            double summary = time(new Task(){ public void run() throws Exception {
+                Messenger.browseChatSummaries(esql, login, Messenger.CHAT_LIST_MEMBERS);
+            }});
+            long summaryTrips = (esql.statementCount() - before) / (ROUNDS + 1);
+
+            System.out.println(String.format("%-16s%d\t%d\t\t%.3f\t\t%d\t\t%.3f", login, chats[0], perChatTrips, perChat, summaryTrips, summary));
+        }
+    }//end
+
+    /* Users created per second: one CreateUser statement per user vs RegisterUsers batches
+    */
+    static void benchRegister(final Messenger esql) throws Exception {
+        final int users = 10000;
+        System.out.println(String.format("Registering %d users", users));
+        System.out.println("method			users/s");
+
+        deleteUsers(esql, "bench_reg_%");
+        long start = System.nanoTime();
+        for (int i = 0; i < users; ++i)
+            esql.executeUpdate("CreateUser", Messenger.CREATE_USER, "bench" + i, "bench_reg_" + i, "bench");
+        System.out.println(String.format("CreateUser\t\t%.0f", users / ((System.nanoTime() - start) / 1e9)));
+        deleteUsers(esql, "bench_reg_%");
+
+        int[] batchSizes = {100, 1000};
+        for (int b = 0; b < batchSizes.length; ++b){
+            List<String[]> batch = new ArrayList<String[]>();
+            for (int i = 0; i < users; ++i)
+                batch.add(new String[]{"bench_reg_" + i, "bench", "bench" + i});
+            start = System.nanoTime();
+            Messenger.RegisterUsers(esql, batch, batchSizes[b]);
+            System.out.println(String.format("RegisterUsers(%d)\t%.0f", batchSizes[b], users / ((System.nanoTime() - start) / 1e9)));
+            deleteUsers(esql, "bench_reg_%");
+        }
+    }//end
+
+    /* Messages per second and p99 send latency of concurrent senders:
+     * one INSERT per message vs the write-behind MessageWriter
+    */
+    static void benchIngest(final Messenger esql) throws Exception {
+        final int senders = 32;
+        final int perSender = 500;
+        final int chat_id = seedChat(esql, 0);
+        System.out.println(String.format("Ingesting %d messages from %d senders", senders * perSender, senders));
+        System.out.println("method			msgs/s		p50 ms		p99 ms");
+
+        ingest(esql, "CreateMsg", senders, perSender, new Sender(){
+            public void send(Messenger session, String text) throws Exception {
+                session.executeUpdate("CreateMsg", Messenger.CREATE_MSG, text, BENCH_USER, chat_id, chat_id, BENCH_USER);
+            }
+        });
+
+        final MessageWriter writer = new MessageWriter(esql.getPool(), Messenger.WRITER_QUEUE, Messenger.WRITER_BATCH, Messenger.WRITER_LINGER);
+        try{
+            ingest(esql, "MessageWriter", senders, perSender, new Sender(){
+                public void send(Messenger session, String text) throws Exception {
+                    writer.send(BENCH_USER, chat_id, text).await();
+                }
+            });
+        }finally{
+            writer.close();
+        }
+        System.out.println(writer.stats());
+    }//end
+
+    /* Round trips and latency of editing a message: permission query then UPDATE
+     * vs one UPDATE carrying the permission check
+    */
+    static void benchGuarded(final Messenger esql) throws Exception {
+        final int chat_id = seedChat(esql, 1000);
+        final int msg_id = Integer.parseInt(esql.executeQueryAndReturnResult(
+                "SELECT max(msg_id) FROM message WHERE chat_id=" + chat_id).get(0).get(0));
+        System.out.println("EditMsg permission check + write");
+        System.out.println("method			trips		ms");
+
+        long before = esql.statementCount();
+        double checked = time(new Task(){
+            public void run() throws Exception {
+                if (esql.executeQuery("chatAccessPermission", "SELECT 1 FROM chat_list WHERE chat_id=? and member=?", chat_id, BENCH_USER) > 0
+                        && esql.executeQuery("bench.isSender", "SELECT 1 FROM message WHERE msg_id=? AND sender_login=?", msg_id, BENCH_USER) > 0)
+                    esql.executeUpdate("bench.editMsg", "UPDATE MESSAGE SET msg_text=?, msg_timestamp=CURRENT_TIMESTAMP WHERE msg_id=?", "bench edited", msg_id);
+            }
+        });
+        long checkedTrips = (esql.statementCount() - before) / (ROUNDS + 1);
+        System.out.println(String.format("check then write	%d		%.3f", checkedTrips, checked));
+
+        before = esql.statementCount();
+        double guarded = time(new Task(){
+            public void run() throws Exception {
+                if (esql.executeUpdate("EditMsg", Messenger.EDIT_MSG, "bench edited", msg_id, BENCH_USER, BENCH_USER) == 0)
+                    throw new SQLException("guarded EditMsg was denied");
+            }
+        });
+        long guardedTrips = (esql.statementCount() - before) / (ROUNDS + 1);
+        System.out.println(String.format("guarded write		%d		%.3f", guardedTrips, guarded));
+    }//end
+
+    // number of chats the search corpus is spread over
+    static final int SEARCH_CHATS = 1000;
+
+    /* Search latency over a generated corpus of -Dbench.searchMessages messages
+     * (10M by default) spread over SEARCH_CHATS chats, bench_user is a member of
+     * one chat in ten. Words follow a skewed distribution, so the searched words
+     * go from very common to rare.
+    */
+    static void benchSearch(final Messenger esql) throws Exception {
+        int messages = Integer.getInteger("bench.searchMessages", 10000000);
+        if (esql.executeQuery("SELECT 1 FROM pg_indexes WHERE indexname='msg_text_search'") == 0)
+            System.out.println("Warning: the msg_text_search index is missing, run create_indexes.sql first");
+        long start = System.nanoTime();
+        seedSearchCorpus(esql, messages);
+        System.out.println(String.format("Generated %d messages in %.1f s", messages, (System.nanoTime() - start) / 1e9));
+
+        System.out.println("SearchMsgs page load (ms), target < 50");
+        System.out.println("query			first page	page 5");
+        String[] queries = {"w1", "w50", "w900", "w4000", "w2 w3", "w10 w700"};
+        for (final String query : queries){
+            double first = time(new Task(){
+                public void run() throws Exception {
+                    Messenger.searchMsgPage(esql, BENCH_USER, query, null, 0, Messenger.MSG_PAGE_SIZE);
+                }
+            });
+            // walk to the cursor of page 5 once, then time only that page
+            String cursorRank = null;
+            int cursorId = 0;
+            for (int p = 1; p < 5; ++p){
+                List<List<String>> page = Messenger.searchMsgPage(esql, BENCH_USER, query, cursorRank, cursorId, Messenger.MSG_PAGE_SIZE);
+                if (page.size() < Messenger.MSG_PAGE_SIZE) break;
+                List<String> last = page.get(page.size() - 1);
+                cursorRank = last.get(5);
+                cursorId = Integer.parseInt(last.get(0));
+            }
+            final String rank = cursorRank;
+            final int id = cursorId;
+            double fifth = rank == null ? 0.0 : time(new Task(){
+                public void run() throws Exception {
+                    Messenger.searchMsgPage(esql, BENCH_USER, query, rank, id, Messenger.MSG_PAGE_SIZE);
+                }
+            });
+            System.out.println(String.format("%-16s\t%.3f\t\t%s", query, first, rank == null ? "-" : String.format("%.3f", fifth)));
+        }
+    }//end
+
+    /* Load generator of the search benchmark: SEARCH_CHATS chats owned by bench_user
+     * holding messages of 6 to 10 words drawn from w0..w4999, low numbers most often
+    */
+    static void seedSearchCorpus(Messenger esql, int messages) throws SQLException {
+        int firstChat;
+        esql.borrow();
+        try{
+            esql.executeUpdate(String.format("INSERT INTO chat(chat_type,init_sender) SELECT 'group','%s' FROM generate_series(1,%d)", BENCH_USER, SEARCH_CHATS));
+            firstChat = esql.getCurrSeqVal("chat_chat_id_seq") - SEARCH_CHATS + 1;
+        }finally{
+            esql.release();
+        }
+        esql.executeUpdate(String.format("INSERT INTO chat_list SELECT c, '%s' FROM generate_series(%d,%d,10) c", BENCH_USER, firstChat, firstChat + SEARCH_CHATS - 1));
+        int chunk = 1000000;
+        for (int from = 1; from <= messages; from += chunk){
+            int to = Math.min(messages, from + chunk - 1);
+            // the word subquery refers to g so that it is evaluated once per message
+            esql.executeUpdate(String.format(
+                    "INSERT INTO message(msg_text, msg_timestamp, sender_login, chat_id) " +
+                    "SELECT (SELECT string_agg('w' || floor(power(random(), 3) * 5000)::int, ' ') FROM generate_series(1, 6 + g %% 5)), " +
+                    "CURRENT_TIMESTAMP - g * interval '1 second', '%s', %d + g %% %d FROM generate_series(%d,%d) g",
+                    BENCH_USER, firstChat, SEARCH_CHATS, from, to));
+        }
+        esql.executeUpdate(String.format(Messenger.CHAT_SUMMARY_FROM_MESSAGES, String.format("WHERE chat_id BETWEEN %d AND %d", firstChat, firstChat + SEARCH_CHATS - 1)));
+        // without fresh statistics on chat_list the planner expects one chat and
+        // runs the msg_text_search scan again for each chat of the user
+        esql.executeUpdate("ANALYZE message");
+        esql.executeUpdate("ANALYZE chat_list");
+    }//end
+
+    /* Cost of the blank-padded CHAR columns of the old schema: the same messages are copied
+     * into a table with the old CHAR(n) columns and one with the varchar columns, then table
+     * and index size, buffers read per page of messages and Java bytes allocated per page
+     * (trimming each value for CHAR, as the code had to) are compared.
+    */
+    static void benchStorage(final Messenger esql) throws Exception {
+        int chat_id = seedChat(esql, 100000);
+        String[][] tables = {
+            {"bench_msg_char", "char(300)", "char(50)", "true"},
+            {"bench_msg_varchar", "varchar(300)", "varchar(50)", "false"},
+        };
+        System.out.println("Message storage, 100000 messages");
+        System.out.println("columns		table kB	index kB	buffers/page	hit rate	bytes/page");
+        try{
+            for (final String[] table : tables){
+                esql.executeUpdate(String.format("DROP TABLE IF EXISTS %s", table[0]));
+                esql.executeUpdate(String.format("CREATE TABLE %s AS SELECT msg_id, CAST(msg_text AS %s) AS msg_text, msg_timestamp, CAST(sender_login AS %s) AS sender_login, chat_id FROM message WHERE chat_id=%d",
+                        table[0], table[1], table[2], chat_id));
+                esql.executeUpdate(String.format("CREATE INDEX %1$s_time ON %1$s(chat_id, msg_timestamp DESC, msg_id DESC)", table[0]));
+                esql.executeUpdate(String.format("ANALYZE %s", table[0]));
+                List<String> size = esql.executeQueryAndReturnResult(String.format("SELECT pg_table_size('%1$s') / 1024, pg_indexes_size('%1$s') / 1024", table[0])).get(0);
+
+                final String page = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login FROM %s WHERE chat_id=? ORDER BY msg_timestamp DESC, msg_id DESC LIMIT %d", table[0], Messenger.MSG_PAGE_SIZE);
+                long hit = 0, read = 0;
+                Pattern buffers = Pattern.compile("shared hit=(\\d+)(?: read=(\\d+))?");
+                for (List<String> line : esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + page.replace("?", String.valueOf(chat_id)))){
+                    Matcher m = buffers.matcher(line.get(0));
+                    if (m.find()){
+                        hit = Long.parseLong(m.group(1));
+                        read = m.group(2) == null ? 0 : Long.parseLong(m.group(2));
+                        break;
+                    }
+                }
+
+                final boolean trim = Boolean.parseBoolean(table[3]);
+                final int chat = chat_id;
+                long bytes = allocatedBytes(new Task(){
+                    public void run() throws Exception {
+                        List<List<String>> rows = esql.executeQueryAndReturnResult("bench." + table[0], page, chat);
+                        if (trim)
+                            for (List<String> row : rows)
+                                for (int c = 0; c < row.size(); ++c)
+                                    row.set(c, row.get(c).trim());
+                    }
+                });
+                System.out.println(String.format("%-12s\t%s\t\t%s\t\t%d\t\t%.1f%%\t\t%s", table[1], size.get(0), size.get(1), hit + read,
+                        hit + read == 0 ? 100.0 : 100.0 * hit / (hit + read), bytes < 0 ? "n/a" : String.valueOf(bytes)));
+            }
+        }finally{
+            for (String[] table : tables)
+                esql.executeUpdate(String.format("DROP TABLE IF EXISTS %s", table[0]));
+        }
+    }//end
+
+    /* Plan regression checks: EXPLAIN ANALYZE of the hot queries, as Messenger sends them,
+     * for the busiest user of the loaded data
+    */
+    static void checkPlans(Messenger esql) throws Exception {
+        String login = busiestUsers(esql, 1).get(0);
+        checkPlan(esql, "browseChats.private", Messenger.BROWSE_PRIVATE_CHATS, "Seq Scan on chat_list", login, login);
+        checkPlan(esql, "SearchMsgs.first", Messenger.SEARCH_MSGS + "ORDER BY rank DESC, msg_id DESC LIMIT ?", "BitmapAnd", "hello", login, Messenger.MSG_PAGE_SIZE);
+    }//end
+
+    /* Print the plan of sql, fail if it contains the avoided plan node
+    */
+    static void checkPlan(Messenger esql, String name, String sql, String avoided, Object... params) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        for (List<String> line : esql.executeQueryAndReturnResult("plan." + name, "EXPLAIN ANALYZE " + sql, params))
+            plan.append(line.get(0)).append('\n');
+        if (plan.indexOf(avoided) >= 0)
+            throw new SQLException(String.format("%s plan has a %s:%n%s", name, avoided, plan));
+        System.out.println(String.format("%s plan ok:%n%s", name, plan));
+    }//end
+
+    /* Throughput and Java allocation of reading results as lists of strings vs Row handlers
+     * and int[] ids: the chat ids of the busiest user and a page of messages of a 1000 message chat
+    */
+    static void benchMapping(final Messenger esql) throws Exception {
+        final String login = busiestUsers(esql, 1).get(0);
+        final int chat_id = seedChat(esql, 1000);
+        final String chats = "SELECT chat_id FROM chat_list WHERE member=?";
+        final String page = "SELECT msg_id, msg_text, msg_timestamp, sender_login FROM message WHERE chat_id=? ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?";
+        final long[] sink = new long[1];
+
+        Task[] tasks = {
+            new Task(){ public void run() throws Exception {
+                for (List<String> row : esql.executeQueryAndReturnResult("bench.chats", chats, login))
+                    sink[0] += Integer.parseInt(row.get(0));
+            }},
+            new Task(){ public void run() throws Exception {
+                for (int id : esql.queryInts("bench.chats", chats, login))
+                    sink[0] += id;
+            }},
+            new Task(){ public void run() throws Exception {
+                for (List<String> row : esql.executeQueryAndReturnResult("bench.page", page, chat_id, 100))
+                    sink[0] += Integer.parseInt(row.get(0)) + Timestamp.valueOf(row.get(2)).getTime() + row.get(1).length();
+            }},
+            new Task(){ public void run() throws Exception {
+                esql.forEachRow("bench.page", page, new Row.Handler(){
+                    public void row(Row row) throws SQLException {
+                        sink[0] += row.getInt(1) + row.getTimestamp(3).getTime() + row.getString(2).length();
+                    }
+                }, chat_id, 100);
+            }},
+        };
+        String[] names = {"chat ids as strings", "chat ids as int[]", "100 msgs as strings", "100 msgs as Row"};
+
+        System.out.println(String.format("Result mapping, %s", login));
+        System.out.println("method				ops/s		bytes/op");
+        for (int t = 0; t < tasks.length; ++t){
+            double ms = time(tasks[t]);
+            long bytes = allocatedBytes(tasks[t]);
+            System.out.println(String.format("%-24s\t%.0f\t\t%s", names[t], 1000 / ms, bytes < 0 ? "n/a" : String.valueOf(bytes)));
+        }
+    }//end
+
+    /* Average bytes allocated by this thread per call of task over 1000 calls,
+     * -1 if the JVM cannot tell
+    */
+    static long allocatedBytes(Task task) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Method allocated;
+        try{
+            // com.sun.management.ThreadMXBean, not part of the java.lang.management API
+            allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        }catch (Exception e){
+            return -1;
+        }
+        if (!allocated.getDeclaringClass().isInstance(threads))
+            return -1;
+        long id = Thread.currentThread().getId();
+        int calls = 1000;
+        task.run();
+        long before = (Long) allocated.invoke(threads, id);
+        for (int i = 0; i < calls; ++i)
+            task.run();
+        return ((Long) allocated.invoke(threads, id) - before) / calls;
+    }//end
+
+    interface Sender {
+        void send(Messenger session, String text) throws Exception;
+    }
+
+    /* Runs senders threads, each with its own session, sending perSender messages
+    */
+    static void ingest(Messenger esql, String method, int senders, final int perSender, final Sender sender) throws Exception {
+        final long[][] latencies = new long[senders][perSender];
+        final Exception[] failure = new Exception[1];
+        final ConnectionPool pool = esql.getPool();
+        Thread[] threads = new Thread[senders];
+        for (int t = 0; t < senders; ++t){
+            final int id = t;
+            threads[t] = new Thread(new Runnable(){
+                public void run(){
+                    Messenger session = new Messenger(pool);
+                    try{
+                        for (int i = 0; i < perSender; ++i){
+                            long start = System.nanoTime();
+                            sender.send(session, "bench ingest " + id + "-" + i);
+                            latencies[id][i] = System.nanoTime() - start;
+                        }
+                    }catch (Exception e){
+                        synchronized (failure){
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (failure[0] != null) throw failure[0];
+
+        long[] all = new long[senders * perSender];
+        for (int t = 0; t < senders; ++t)
+            System.arraycopy(latencies[t], 0, all, t * perSender, perSender);
+        Arrays.sort(all);
+        System.out.println(String.format("%-16s\t%.0f\t\t%.3f\t\t%.3f", method, all.length / seconds,
+                all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6));
+    }//end
+}//end MessengerBench
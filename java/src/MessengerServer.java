@@ -0,0 +1,237 @@
+/*
+ * Headless multi-session Messenger server
+ * =======================================
+ *
+ * Serves the Messenger operations to many clients over a local socket. Every
+ * client gets its own Messenger session, and all sessions share one
+ * connection pool.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Line protocol server for Messenger. A client sends one command name per
+ * line, for example LogIn, followed by the lines the matching interactive
+ * operation would read (login, password, chat id, message text, ...). The
+ * operation's output is sent back and every command ends with a line
+ * holding a single ".".
+ *
+ * Each session runs on a virtual thread when the JVM has them, otherwise on
+ * a bounded pool of platform threads.
+ *
+ */
+public class MessengerServer {
+
+    // marks the end of the reply to one command
+    static final String END_OF_REPLY = ".";
+
+    // session threads used when virtual threads are not available
+    static final int SESSION_THREADS = Integer.getInteger("server.threads", 256);
+
+    static final String HELP =
+            "Commands: CreateUser, LogIn, LogOut, DeleteAccount,\n" +
+            "  ListChat, UnreadCounts, ListChatMsgs, ListChatMembers, CreateGroupChat, CreatePrivateChat,\n" +
+            "  addToChat, deleteFromChat, DeleteChat, WatchChat, CreateMsg, EditMsg, DeleteMsg, SearchMsgs,\n" +
+            "  ListContacts, ListBlocks, addToContact, addToBlock, DeleteContact, DeleteBlock,\n" +
+            "  QueryStats, Help, Quit\n" +
+            "Commands on a chat read the chat id from the next line.\n" +
+            "WatchChat sends the changes of the chat until the client sends a line.";
+
+    private final ConnectionPool _pool;
+    private final ExecutorService _sessions;
+
+    public MessengerServer (ConnectionPool pool) {
+        this._pool = pool;
+        this._sessions = newSessionExecutor();
+    }//end MessengerServer
+
+    /*
+     * One virtual thread per session on JDKs that have them, a fixed
+     * pool of platform threads otherwise
+     */
+    static ExecutorService newSessionExecutor () {
+        try{
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }catch (Exception e){
+            return Executors.newFixedThreadPool(SESSION_THREADS);
+        }
+    }//end newSessionExecutor
+
+    /**
+     * Accepts clients on the loopback interface until the process is stopped.
+     *
+     * @param port the TCP port to listen on
+     * @throws java.io.IOException when the socket can not be opened
+     */
+    public void serve (int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+        System.out.println("Listening on 127.0.0.1:" + port);
+        try{
+            while (true){
+                final Socket client = server.accept();
+                this._sessions.execute(new Runnable(){
+                    public void run(){
+                        session(client);
+                    }
+                });
+            }
+        }finally{
+            server.close();
+            this._sessions.shutdown();
+        }
+    }//end serve
+
+    /*
+     * Runs the command loop of one client until it quits or disconnects
+     */
+    void session (Socket client) {
+        Messenger esql = null;
+        try{
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            PrintStream out = new PrintStream(client.getOutputStream(), true, "UTF-8");
+            esql = new Messenger(this._pool, in, out);
+            out.println("READY");
+            String user = null;
+            String command;
+            while ((command = in.readLine()) != null){
+                command = command.trim();
+                if (command.equals("Quit"))
+                    break;
+                try{
+                    user = dispatch(esql, user, command);
+                }catch (IllegalStateException e){
+                    // the client went away in the middle of a command
+                    break;
+                }
+                out.println(END_OF_REPLY);
+            }
+        }catch (IOException e){
+            // the client went away.
+        }finally{
+            if (esql != null)
+                esql.endSession();
+            try{
+                client.close();
+            }catch (IOException e){
+                // ignored.
+            }
+        }
+    }//end session
+
+    /**
+     * Runs one command for a session.
+     *
+     * @param esql the session
+     * @param user the login of the session, or null before LogIn
+     * @param command the command name
+     * @return the login of the session after the command
+     */
+    static String dispatch (Messenger esql, String user, String command) {
+        if (command.equals("CreateUser")){
+            Messenger.CreateUser(esql);
+            return user;
+        }
+        if (command.equals("LogIn")){
+            String login = Messenger.LogIn(esql);
+            esql.out.println(login == null ? "ERR login failed" : "Logged in as " + login);
+            return login == null ? user : login;
+        }
+        if (command.equals("Help")){
+            esql.out.println(HELP);
+            return user;
+        }
+        if (command.equals("QueryStats")){
+            esql.out.println(Messenger.QUERIES.dump());
+            return user;
+        }
+        if (user == null){
+            esql.out.println(command.length() == 0 ? "ERR empty command" : "ERR unknown command or not logged in: " + command);
+            return user;
+        }
+
+        if (command.equals("LogOut")) { esql.endSession(); return null; }
+        else if (command.equals("DeleteAccount")) { if (Messenger.DeleteAccount(esql, user)) { esql.endSession(); return null; } }
+        else if (command.equals("ListChat")) Messenger.ListChat(esql, user);
+        else if (command.equals("UnreadCounts")) Messenger.UnreadCounts(esql, user);
+        else if (command.equals("ListChatMsgs")) Messenger.ListChatMsgs(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("ListChatMembers")) Messenger.ListChatMembers(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("CreateGroupChat")) Messenger.CreateGroupChat(esql, user);
+        else if (command.equals("CreatePrivateChat")) Messenger.CreatePrivateChat(esql, user);
+        else if (command.equals("addToChat")) Messenger.addToChat(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("deleteFromChat")) Messenger.deleteFromChat(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("DeleteChat")) Messenger.DeleteChat(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("WatchChat")) Messenger.WatchChat(esql, user, Messenger.readChoice(esql));
+        else if (command.equals("CreateMsg")){
+            // the console only offers the user's own chats, a client can name any chat
+            int chat_id = Messenger.readChoice(esql);
+            if (Messenger.chatAccessPermission(esql, user, chat_id))
+                Messenger.CreateMsg(esql, user, chat_id);
+            else
+                esql.out.println("Action denied: You are not a member of this chat");
+        }
+        else if (command.equals("EditMsg")) Messenger.EditMsgOpt(esql, user);
+        else if (command.equals("DeleteMsg")) Messenger.DeleteMsgOpt(esql, user);
+        else if (command.equals("SearchMsgs")) Messenger.SearchMsgs(esql, user);
+        else if (command.equals("ListContacts")) Messenger.ListContacts(esql, user);
+        else if (command.equals("ListBlocks")) Messenger.ListBlocks(esql, user);
+        else if (command.equals("addToContact")) Messenger.addToContact(esql, user);
+        else if (command.equals("addToBlock")) Messenger.addToBlock(esql, user);
+        else if (command.equals("DeleteContact")) Messenger.DeleteContact(esql, user);
+        else if (command.equals("DeleteBlock")) Messenger.DeleteBlock(esql, user);
+        else esql.out.println("ERR unknown command: " + command);
+        return user;
+    }//end dispatch
+
+    /**
+     * The server entry point
+     *
+     * @param args <dbname> <port> <user> <listen port>
+     */
+    public static void main (String[] args) {
+        if (args.length != 4) {
+            System.err.println (
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    MessengerServer.class.getName () +
+                    " <dbname> <port> <user> <listen port>");
+            return;
+        }//end if
+
+        ConnectionPool pool = null;
+        try{
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            pool = Messenger.openPool(url, args[2], "");
+            Messenger.startWriter(pool);
+            Messenger.startReaper(pool);
+            Messenger.startReplicas(pool, args[2], "");
+            new MessengerServer(pool).serve(Integer.parseInt(args[3]));
+        }catch(Exception e) {
+            System.err.println (e.getMessage ());
+        }finally{
+            Messenger.stopWriter();
+            Messenger.stopReaper();
+            Messenger.stopChatEvents();
+            Messenger.stopReplicas();
+            if (pool != null){
+                System.out.println(pool.stats());
+                System.out.println(Messenger.cacheStats());
+                System.out.println(Messenger.QUERIES.dump());
+                pool.close();
+            }
+        }
+    }//end main
+}//end MessengerServer
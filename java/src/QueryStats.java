@@ -0,0 +1,210 @@
+/*
+ * Latency and row counts of every named query
+ * ===========================================
+ *
+ * Records how long each logical query (LogIn, browseChats.private,
+ * CreateMsg, ...) takes and how many rows it returns or changes, so that
+ * the query hurting a running client or server can be found.
+ *
+ */
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One latency histogram per query name. Latencies are counted in
+ * microseconds in log-linear buckets, 8 per power of two, so a percentile
+ * read from them is at most 12.5% above the real value whatever its
+ * magnitude. Recording only increments atomic counters and never locks.
+ *
+ * A query slower than the slow query threshold is also written to the slow
+ * query log with its SQL text. Parameter values are left out as they hold
+ * passwords and message texts.
+ *
+ */
+public class QueryStats {
+
+    // sub-buckets per power of two, as a number of bits
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // latencies are counted up to 2^MAX_BITS microseconds (about 4.6 hours),
+    // anything longer goes to the last bucket
+    static final int MAX_BITS = 34;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // percentiles shown by dump()
+    static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    /*
+     * Counters of one query name
+     */
+    private static class Histogram {
+        final String name;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        Histogram (String name) {
+            this.name = name;
+        }
+
+        void record (long micros, long rowCount) {
+            this.counts.incrementAndGet(bucket(micros));
+            this.calls.incrementAndGet();
+            if (rowCount < 0)
+                this.errors.incrementAndGet();
+            else
+                this.rows.addAndGet(rowCount);
+            this.totalMicros.addAndGet(micros);
+            long max = this.maxMicros.get();
+            while (micros > max && !this.maxMicros.compareAndSet(max, micros))
+                max = this.maxMicros.get();
+        }
+
+        /*
+         * The highest latency of the bucket holding the given percentile
+         */
+        long percentile (double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; ++i){
+                snapshot[i] = this.counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i){
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return Math.min(highestValue(i), this.maxMicros.get());
+            }
+            return this.maxMicros.get();
+        }
+    }//end Histogram
+
+    private final ConcurrentMap<String, Histogram> _queries = new ConcurrentHashMap<String, Histogram>();
+    private final long _slowMicros;
+    private final String _slowLogPath;
+    private PrintWriter _slowLog = null;
+
+    /**
+     * Creates empty statistics.
+     *
+     * @param slowMillis queries taking at least this many milliseconds are
+     *        written to the slow query log, a negative value turns it off
+     * @param slowLogPath the file the slow queries are appended to
+     */
+    public QueryStats (long slowMillis, String slowLogPath) {
+        this._slowMicros = slowMillis < 0 ? Long.MAX_VALUE : slowMillis * 1000;
+        this._slowLogPath = slowLogPath;
+    }//end QueryStats
+
+    /*
+     * Index of the bucket counting a latency of micros
+     */
+    static int bucket (long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) Math.max(0, micros);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_BITS)
+            return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }//end bucket
+
+    /*
+     * The highest latency counted in bucket index
+     */
+    static long highestValue (int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }//end highestValue
+
+    /**
+     * Records one execution of a query.
+     *
+     * @param name the logical query name
+     * @param sql the SQL text, written to the slow query log
+     * @param nanos how long the query took, result reading included
+     * @param rows rows returned or changed, -1 if the query failed
+     */
+    public void record (String name, String sql, long nanos, long rows) {
+        long micros = nanos / 1000;
+        Histogram histogram = this._queries.get(name);
+        if (histogram == null){
+            Histogram created = new Histogram(name);
+            histogram = this._queries.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        histogram.record(micros, rows);
+        if (micros >= this._slowMicros){
+            histogram.slow.incrementAndGet();
+            logSlow(name, sql, micros, rows);
+        }
+    }//end record
+
+    /*
+     * Appends one line to the slow query log: time, name, latency, rows and the SQL text
+     */
+    private synchronized void logSlow (String name, String sql, long micros, long rows) {
+        try{
+            if (this._slowLog == null)
+                this._slowLog = new PrintWriter(new FileWriter(this._slowLogPath, true));
+            this._slowLog.println(String.format("%s\t%s\t%.3f ms\t%s\t%s",
+                    new Timestamp(System.currentTimeMillis()), name, micros / 1e3,
+                    rows < 0 ? "failed" : rows + " rows", sql.replaceAll("\\s+", " ").trim()));
+            this._slowLog.flush();
+        }catch (IOException e){
+            System.err.println("Slow query log: " + e.getMessage());
+        }
+    }//end logSlow
+
+    /**
+     * Returns one line per query name, the queries with the most total time
+     * first: calls, errors, rows, latency percentiles and maximum, total
+     * time and number of slow executions. Latencies are in milliseconds.
+     */
+    public String dump () {
+        List<Histogram> histograms = new ArrayList<Histogram>(this._queries.values());
+        Collections.sort(histograms, new Comparator<Histogram>(){
+            public int compare (Histogram a, Histogram b){
+                long ta = a.totalMicros.get(), tb = b.totalMicros.get();
+                return ta < tb ? 1 : ta > tb ? -1 : a.name.compareTo(b.name);
+            }
+        });
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-28s %8s %6s %10s %9s %9s %9s %9s %9s %11s %6s",
+                "query", "calls", "errors", "rows", "p50", "p90", "p99", "p99.9", "max", "total", "slow"));
+        for (Histogram h : histograms){
+            out.append(String.format("%n%-28s %8d %6d %10d", h.name, h.calls.get(), h.errors.get(), h.rows.get()));
+            for (double percentile : PERCENTILES)
+                out.append(String.format(" %9.3f", h.percentile(percentile) / 1e3));
+            out.append(String.format(" %9.3f %11.1f %6d", h.maxMicros.get() / 1e3, h.totalMicros.get() / 1e3, h.slow.get()));
+        }
+        if (histograms.isEmpty())
+            out.append(String.format("%nno queries recorded"));
+        return out.toString();
+    }//end dump
+}//end QueryStats
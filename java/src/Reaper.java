@@ -0,0 +1,304 @@
+/*
+ * Background removal of deleted chats and accounts
+ * ================================================
+ *
+ * DeleteChat and DeleteAccount only set deleted_at on their CHAT or USR row,
+ * which hides the chat or account at once. The reaper removes the rows that
+ * depend on it afterwards, a bounded batch per transaction, so that no
+ * delete holds its locks or writes its WAL in one giant transaction.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reaper thread runs one batch at a time, pausing between batches, and
+ * waits for wake() or the idle interval once nothing is left. Every batch
+ * is one transaction holding an advisory lock, so only one reaper of all
+ * the clients and servers on a database works at a time.
+ *
+ * Nothing is kept in memory: the rows with deleted_at set are the work
+ * left, so a reaper started again after a restart goes on where the last
+ * one stopped. Deleted chats are reaped first, oldest deletion first:
+ *
+ * - a chat loses -Dreaper.batch (1000) messages per batch, its message
+ *   count in chat_summary going down with them, then its CHAT row
+ * - an account first has the chats it started deleted as DeleteChat does,
+ *   then loses its messages, its chat memberships and its entries in
+ *   contact and block lists, a batch at a time, then its USR row and
+ *   its own lists
+ *
+ */
+public class Reaper implements Runnable {
+
+    // key of the advisory lock held by the reaper running a batch
+    static final int LOCK_KEY = 0x52454150;
+
+    // batches between two progress lines of main()
+    static final int PROGRESS_BATCHES = 100;
+
+    static final String LOCK = "SELECT 1 WHERE pg_try_advisory_xact_lock(" + LOCK_KEY + ")";
+    static final String NEXT_CHAT = "SELECT chat_id FROM chat WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT 1";
+    static final String NEXT_USER = "SELECT login FROM usr WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT 1";
+
+    static final String DELETE_CHAT_MESSAGES =
+            "WITH D AS (DELETE FROM message WHERE chat_id=? AND (msg_id, msg_timestamp) IN (" +
+            "           SELECT msg_id, msg_timestamp FROM message WHERE chat_id=? LIMIT ?) RETURNING 1), " +
+            "S AS (UPDATE chat_summary SET msg_count=msg_count-(SELECT count(*) FROM D) WHERE chat_id=?) " +
+            "SELECT count(*) FROM D";
+    // cascades to the chat_summary row
+    static final String DELETE_CHAT =
+            "DELETE FROM chat C WHERE C.chat_id=? AND C.deleted_at IS NOT NULL AND NOT EXISTS (SELECT 1 FROM message M WHERE M.chat_id=C.chat_id)";
+
+    static final String DELETE_USER_CHATS =
+            "WITH C AS (UPDATE chat SET deleted_at=CURRENT_TIMESTAMP WHERE chat_id IN (" +
+            "           SELECT chat_id FROM chat WHERE init_sender=? AND deleted_at IS NULL LIMIT ?) RETURNING chat_id), " +
+            "L AS (DELETE FROM chat_list CL USING C WHERE CL.chat_id=C.chat_id) " +
+            "SELECT count(*) FROM C";
+    // the statement does not see its own delete, so the new last messages skip every message of the user
+    static final String DELETE_USER_MESSAGES =
+            "WITH D AS (DELETE FROM message WHERE sender_login=? AND (msg_id, msg_timestamp) IN (" +
+            "           SELECT msg_id, msg_timestamp FROM message WHERE sender_login=? LIMIT ?) RETURNING chat_id), " +
+            "C AS (SELECT chat_id, count(*) AS messages FROM D GROUP BY chat_id), " +
+            "S AS (UPDATE chat_summary S SET msg_count=S.msg_count-C.messages, " +
+            "           last_msg_id=CASE WHEN S.last_sender=? THEN L.msg_id ELSE S.last_msg_id END, " +
+            "           last_msg_timestamp=CASE WHEN S.last_sender=? THEN L.msg_timestamp ELSE S.last_msg_timestamp END, " +
+            "           last_sender=CASE WHEN S.last_sender=? THEN L.sender_login ELSE S.last_sender END " +
+            "       FROM C LEFT JOIN LATERAL (SELECT msg_id, msg_timestamp, sender_login FROM message L " +
+            "           WHERE L.chat_id=C.chat_id AND L.sender_login IS DISTINCT FROM ? " +
+            "           ORDER BY L.msg_timestamp DESC, L.msg_id DESC LIMIT 1) L ON true " +
+            "       WHERE S.chat_id=C.chat_id) " +
+            "SELECT count(*) FROM D";
+    static final String DELETE_USER_MEMBERSHIPS =
+            "DELETE FROM chat_list WHERE member=? AND chat_id IN (SELECT chat_id FROM chat_list WHERE member=? LIMIT ?)";
+    static final String DELETE_USER_LIST_ENTRIES =
+            "DELETE FROM user_list_contains WHERE list_member=? AND list_id IN (SELECT list_id FROM user_list_contains WHERE list_member=? LIMIT ?)";
+    // the chats of the user must have been reaped, the other rows referencing it are gone
+    static final String DELETE_USER =
+            "WITH U AS (DELETE FROM usr WHERE login=? AND deleted_at IS NOT NULL " +
+            "           AND NOT EXISTS (SELECT 1 FROM chat WHERE init_sender=?) RETURNING block_list, contact_list), " +
+            "L AS (DELETE FROM user_list WHERE list_id IN (SELECT block_list FROM U UNION ALL SELECT contact_list FROM U)) " +
+            "SELECT count(*) FROM U";
+
+    static final String PENDING =
+            "SELECT (SELECT count(*) FROM chat WHERE deleted_at IS NOT NULL), " +
+            "       (SELECT coalesce(sum(S.msg_count), 0) FROM chat C JOIN chat_summary S ON S.chat_id=C.chat_id WHERE C.deleted_at IS NOT NULL), " +
+            "       (SELECT count(*) FROM usr WHERE deleted_at IS NOT NULL), " +
+            "       (SELECT count(*) FROM usr U JOIN message M ON M.sender_login=U.login WHERE U.deleted_at IS NOT NULL)";
+
+    /*
+     * What one batch removed, added to the counters once it committed
+     */
+    private static class Batch {
+        int rows = 0;
+        int chats = 0;
+        int users = 0;
+    }//end Batch
+
+    private final Messenger _esql;
+    private final int _batchSize;
+    private final long _pause;
+    private final long _idle;
+    private final Semaphore _wakeups = new Semaphore(0);
+    private Thread _thread = null;
+    private volatile boolean _running = true;
+
+    private volatile long _batches = 0;
+    private volatile long _rows = 0;
+    private volatile long _chats = 0;
+    private volatile long _users = 0;
+    private volatile long _failures = 0;
+
+    /**
+     * Creates a reaper, start() runs it on its own thread.
+     *
+     * @param pool the pool the reaper borrows its connection from
+     * @param batchSize maximum number of rows of one table deleted per transaction
+     * @param pause milliseconds between two batches
+     * @param idle milliseconds between two looks for work when none is left
+     */
+    public Reaper (ConnectionPool pool, int batchSize, long pause, long idle) {
+        this._esql = new Messenger(pool);
+        this._batchSize = batchSize;
+        this._pause = pause;
+        this._idle = idle;
+    }//end Reaper
+
+    public static void main (String[] args) {
+        if (args.length != 3) {
+            System.err.println (
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    Reaper.class.getName () +
+                    " <dbname> <port> <user>");
+            return;
+        }//end if
+
+        ConnectionPool pool = null;
+        try{
+            Class.forName ("org.postgresql.Driver");
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            pool = Messenger.openPool(url, args[2], "");
+            Reaper reaper = new Reaper(pool, Messenger.REAPER_BATCH, Messenger.REAPER_PAUSE, Messenger.REAPER_IDLE);
+            System.out.println(reaper.pending());
+            int rows;
+            while ((rows = reaper.reapBatch()) > 0){
+                if (reaper._batches % PROGRESS_BATCHES == 0)
+                    System.out.println(reaper.pending());
+                Thread.sleep(reaper._pause);
+            }
+            if (rows < 0)
+                System.out.println("Another reaper is running");
+            System.out.println(reaper.stats());
+            System.out.println(reaper.pending());
+        }catch(Exception e){
+            System.err.println (e.getMessage ());
+        }finally{
+            if (pool != null) pool.close();
+        }
+    }//end main
+
+    /**
+     * Starts the reaper thread.
+     */
+    public void start () {
+        this._thread = new Thread(this, "Reaper");
+        this._thread.setDaemon(true);
+        this._thread.start();
+    }//end start
+
+    /**
+     * Makes an idle reaper look for work now, called after a deletion.
+     */
+    public void wake () {
+        this._wakeups.release();
+    }//end wake
+
+    public void run () {
+        while (this._running){
+            int rows;
+            try{
+                rows = reapBatch();
+            }catch (SQLException e){
+                // retried after the idle interval, e.g. when a deleted user still had a session writing
+                ++this._failures;
+                System.err.println("Reaper: " + e.getMessage());
+                rows = 0;
+            }
+            try{
+                if (rows > 0){
+                    Thread.sleep(this._pause);
+                }else{
+                    this._wakeups.tryAcquire(this._idle, TimeUnit.MILLISECONDS);
+                    this._wakeups.drainPermits();
+                }
+            }catch (InterruptedException e){
+                // close() stops the loop
+            }
+        }
+    }//end run
+
+    /**
+     * Runs one batch in its own transaction.
+     *
+     * @return the number of rows removed, 0 when nothing is left to reap and
+     *         -1 when another reaper holds the lock
+     * @throws java.sql.SQLException when the batch failed and was rolled back
+     */
+    public int reapBatch () throws SQLException {
+        Batch batch = new Batch();
+        this._esql.begin();
+        try{
+            if (this._esql.executeQuery("Reaper.lock", LOCK) == 0){
+                this._esql.rollback();
+                return -1;
+            }
+            int[] chat = this._esql.queryInts("Reaper.nextChat", NEXT_CHAT);
+            if (chat.length > 0){
+                reapChat(chat[0], batch);
+            }else{
+                List<List<String>> user = this._esql.executeQueryAndReturnResult("Reaper.nextUser", NEXT_USER);
+                if (!user.isEmpty())
+                    reapUser(user.get(0).get(0), batch);
+            }
+        }catch (SQLException e){
+            this._esql.rollback();
+            throw e;
+        }
+        this._esql.commit();
+        if (batch.rows > 0) ++this._batches;
+        this._rows += batch.rows;
+        this._chats += batch.chats;
+        this._users += batch.users;
+        return batch.rows;
+    }//end reapBatch
+
+    /*
+     * Deletes a batch of the messages of a deleted chat, and the chat once
+     * none is left
+     */
+    private void reapChat (int chat_id, Batch batch) throws SQLException {
+        int messages = this._esql.queryInts("Reaper.chatMessages", DELETE_CHAT_MESSAGES, chat_id, chat_id, this._batchSize, chat_id)[0];
+        batch.rows += messages;
+        if (messages < this._batchSize){
+            int chats = this._esql.executeUpdate("Reaper.chat", DELETE_CHAT, chat_id);
+            batch.rows += chats;
+            batch.chats += chats;
+        }
+    }//end reapChat
+
+    /*
+     * Runs the first step of the deletion of an account that has rows left
+     */
+    private void reapUser (String login, Batch batch) throws SQLException {
+        // the chats go first, reaped as deleted chats by the next batches
+        batch.rows += this._esql.queryInts("Reaper.userChats", DELETE_USER_CHATS, login, this._batchSize)[0];
+        if (batch.rows > 0) return;
+        batch.rows += this._esql.queryInts("Reaper.userMessages", DELETE_USER_MESSAGES,
+                login, login, this._batchSize, login, login, login, login)[0];
+        if (batch.rows > 0) return;
+        batch.rows += this._esql.executeUpdate("Reaper.userMemberships", DELETE_USER_MEMBERSHIPS, login, login, this._batchSize);
+        if (batch.rows > 0) return;
+        batch.rows += this._esql.executeUpdate("Reaper.userListEntries", DELETE_USER_LIST_ENTRIES, login, login, this._batchSize);
+        if (batch.rows > 0) return;
+        int users = this._esql.queryInts("Reaper.user", DELETE_USER, login, login)[0];
+        batch.rows += users;
+        batch.users += users;
+    }//end reapUser
+
+    /**
+     * Stops the reaper thread after its current batch.
+     */
+    public void close () {
+        this._running = false;
+        if (this._thread == null) return;
+        this._thread.interrupt();
+        try{
+            this._thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }//end close
+
+    /**
+     * Returns the work left in the database: deleted chats and their
+     * messages, deleted accounts and their messages.
+     */
+    public String pending () throws SQLException {
+        List<String> row = this._esql.executeQueryAndReturnResult("Reaper.pending", PENDING).get(0);
+        return String.format("Reaper pending: %s chats with %s messages, %s accounts with %s messages",
+                row.get(0), row.get(1), row.get(2), row.get(3));
+    }//end pending
+
+    /**
+     * Returns the reaper counters.
+     */
+    public String stats () {
+        return String.format("Reaper: %d rows removed in %d batches, %d chats and %d accounts reaped, %d failed batches",
+                this._rows, this._batches, this._chats, this._users, this._failures);
+    }//end stats
+}//end Reaper
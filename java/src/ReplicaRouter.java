@@ -0,0 +1,276 @@
+/*
+ * Read queries on replicas
+ * ========================
+ *
+ * The read-only queries named in Messenger.REPLICA_READS can be answered by
+ * streaming replicas of the database, so that read capacity grows with the
+ * number of replicas. Every other query, and any query run inside a
+ * transaction or another borrow(), stays on the primary.
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connection pool per replica and a monitor thread that reads the WAL
+ * position of the primary and the replay position of every replica each
+ * check interval. From them it keeps the horizon of each replica: a time
+ * such that every transaction committed before it is visible there.
+ *
+ * A read goes to the next replica in turn whose horizon is after the last
+ * write of the session (read-your-writes) and no older than the maximum lag
+ * (no session reads data staler than that). Otherwise, or while a replica is
+ * down, it goes to the primary. A server that is not in recovery, such as
+ * the primary itself given as a replica to test with one instance, is
+ * caught up at every check.
+ *
+ * Times are System.nanoTime() values, as are the write times of the
+ * sessions they are compared with.
+ *
+ */
+public class ReplicaRouter implements Runnable {
+
+    // the WAL position a commit has reached once it returned, as a number of bytes
+    static final String PRIMARY_POSITION = "SELECT pg_current_wal_insert_lsn() - '0/0'::pg_lsn";
+    // the WAL position replayed by a standby, NULL on a server that is not one
+    static final String REPLICA_POSITION = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn() - '0/0'::pg_lsn";
+
+    /*
+     * The pool and state of one replica
+     */
+    private static class Replica {
+        final String url;
+        final ConnectionPool pool;
+        volatile boolean up = false;
+        volatile long horizon = Long.MIN_VALUE;
+        final AtomicLong reads = new AtomicLong();
+        long failures = 0;
+
+        Replica (String url, ConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+    }//end Replica
+
+    private final ConnectionPool _primary;
+    private final List<Replica> _replicas = new ArrayList<Replica>();
+    private final long _checkMillis;
+    private final long _maxLagNanos;
+    private final Thread _thread;
+    private volatile boolean _running = true;
+
+    // (time, primary WAL position) of the recent checks, oldest first, used by the monitor only
+    private final Deque<long[]> _samples = new ArrayDeque<long[]>();
+
+    private final AtomicLong _next = new AtomicLong();
+    private final AtomicLong _afterWrite = new AtomicLong();
+    private final AtomicLong _lagging = new AtomicLong();
+
+    /**
+     * Opens a pool per replica and starts the monitor thread. The pools
+     * connect on first use, a replica that is down stays out of the rotation
+     * until a check reaches it.
+     *
+     * @param primary the pool of the primary
+     * @param urls the JDBC URLs of the replicas, blank ones are skipped
+     * @param user the user name used to login to the replicas
+     * @param passwd the user login password
+     * @param checkMillis milliseconds between two checks of the replicas
+     * @param maxLagMillis replicas lagging more than this many milliseconds get no reads
+     * @throws java.sql.SQLException when a replica pool could not be opened
+     * @throws IllegalArgumentException when no URL is left, see urls()
+     */
+    public ReplicaRouter (ConnectionPool primary, String[] urls, String user, String passwd,
+            long checkMillis, long maxLagMillis) throws SQLException {
+        this._primary = primary;
+        this._checkMillis = checkMillis;
+        this._maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        for (String url : urls)
+            if (url.trim().length() > 0)
+                this._replicas.add(new Replica(url.trim(), new ConnectionPool(url.trim(), user, passwd,
+                        0, Messenger.POOL_MAX, Messenger.POOL_ACQUIRE_TIMEOUT, Messenger.POOL_IDLE_TIMEOUT)));
+        if (this._replicas.isEmpty())
+            throw new IllegalArgumentException("No replica URL in " + Arrays.toString(urls));
+        check();
+        this._thread = new Thread(this, "ReplicaRouter");
+        this._thread.setDaemon(true);
+        this._thread.start();
+    }//end ReplicaRouter
+
+    /**
+     * Splits a comma separated list of JDBC URLs, dropping blank entries.
+     * Returns an empty array when the list names no replica.
+     */
+    public static String[] urls (String list) {
+        List<String> urls = new ArrayList<String>();
+        for (String url : list.split(","))
+            if (url.trim().length() > 0)
+                urls.add(url.trim());
+        return urls.toArray(new String[urls.size()]);
+    }//end urls
+
+    /**
+     * Returns the pool of the replica a read of a session should go to,
+     * or null if it has to go to the primary.
+     *
+     * @param lastWrite when the last write of the session ended, Long.MIN_VALUE if it never wrote
+     */
+    public ConnectionPool route (long lastWrite) {
+        int count = this._replicas.size();
+        long now = System.nanoTime();
+        boolean written = false;
+        int first = (int) (this._next.getAndIncrement() % count);
+        for (int i = 0; i < count; ++i){
+            Replica replica = this._replicas.get((first + i) % count);
+            if (!replica.up || now - replica.horizon > this._maxLagNanos)
+                continue;
+            if (lastWrite != Long.MIN_VALUE && replica.horizon < lastWrite){
+                written = true;
+                continue;
+            }
+            replica.reads.incrementAndGet();
+            return replica.pool;
+        }
+        if (written)
+            this._afterWrite.incrementAndGet();
+        else
+            this._lagging.incrementAndGet();
+        return null;
+    }//end route
+
+    /**
+     * Takes a replica whose pool failed to hand out a connection out of the
+     * rotation until its next successful check.
+     */
+    public void failed (ConnectionPool pool, SQLException e) {
+        for (Replica replica : this._replicas){
+            if (replica.pool == pool && replica.up){
+                replica.up = false;
+                System.err.println("Replica " + replica.url + ": " + e.getMessage());
+            }
+        }
+    }//end failed
+
+    public void run () {
+        while (this._running){
+            try{
+                Thread.sleep(this._checkMillis);
+            }catch (InterruptedException e){
+                // close() stops the loop
+            }
+            if (this._running)
+                check();
+        }
+    }//end run
+
+    /*
+     * Samples the WAL position of the primary, then moves the horizon of every
+     * replica to the newest sample it has replayed
+     */
+    private void check () {
+        long sampled = System.nanoTime();
+        long position;
+        try{
+            position = position(this._primary, PRIMARY_POSITION)[1];
+        }catch (SQLException e){
+            System.err.println("Replica check: " + e.getMessage());
+            return;
+        }
+        this._samples.addLast(new long[]{sampled, position});
+        // older samples only matter to replicas too far behind to get reads
+        while (this._samples.size() > 1 && sampled - this._samples.peekFirst()[0] > 2 * this._maxLagNanos)
+            this._samples.removeFirst();
+
+        for (Replica replica : this._replicas){
+            try{
+                long[] replayed = position(replica.pool, REPLICA_POSITION);
+                if (replayed[0] == 0){
+                    replica.horizon = sampled;
+                }else{
+                    Iterator<long[]> newest = this._samples.descendingIterator();
+                    while (newest.hasNext()){
+                        long[] sample = newest.next();
+                        if (sample[1] <= replayed[1]){
+                            replica.horizon = Math.max(replica.horizon, sample[0]);
+                            break;
+                        }
+                    }
+                }
+                if (!replica.up && replica.failures > 0)
+                    System.err.println("Replica " + replica.url + ": back");
+                replica.up = true;
+            }catch (SQLException e){
+                if (replica.up || replica.failures == 0)
+                    System.err.println("Replica " + replica.url + ": " + e.getMessage());
+                replica.up = false;
+                ++replica.failures;
+            }
+        }
+    }//end check
+
+    /*
+     * Runs a position query on a connection of pool. Returns {1 if the server
+     * is a standby, else 0; the WAL position in the last column, or 0 if NULL}.
+     */
+    private static long[] position (ConnectionPool pool, String query) throws SQLException {
+        ConnectionPool.Pooled pooled = pool.acquire();
+        try{
+            Statement stmt = pooled.connection.createStatement();
+            try{
+                ResultSet rs = stmt.executeQuery(query);
+                rs.next();
+                int columns = rs.getMetaData().getColumnCount();
+                long[] result = {columns > 1 && rs.getBoolean(1) ? 1 : 0, rs.getLong(columns)};
+                rs.close();
+                return result;
+            }finally{
+                stmt.close();
+            }
+        }finally{
+            pool.release(pooled);
+        }
+    }//end position
+
+    /**
+     * Stops the monitor and closes the replica pools.
+     */
+    public void close () {
+        this._running = false;
+        this._thread.interrupt();
+        try{
+            this._thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        for (Replica replica : this._replicas)
+            replica.pool.close();
+    }//end close
+
+    /**
+     * Returns the reads sent to each replica and to the primary, and the lag of
+     * each replica at its last check.
+     */
+    public String stats () {
+        StringBuilder out = new StringBuilder(String.format(
+                "Replicas: %d reads on the primary after a write, %d with no replica caught up",
+                this._afterWrite.get(), this._lagging.get()));
+        long now = System.nanoTime();
+        for (Replica replica : this._replicas){
+            out.append(String.format("%n  %s: %s, %d reads, %d failed checks", replica.url,
+                    !replica.up ? "down" : String.format("%.0f ms behind", (now - replica.horizon) / 1e6),
+                    replica.reads.get(), replica.failures));
+        }
+        return out.toString();
+    }//end stats
+}//end ReplicaRouter
@@ -0,0 +1,60 @@
+/*
+ * Typed, streaming access to query results
+ * ========================================
+ *
+ * Lets callers read the rows of a query one at a time with their column
+ * types, instead of as a list of records of strings.
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * The current row of a query run by Messenger.forEachRow. The same Row is
+ * passed to the handler for every row of the result and is only valid during
+ * that call: the values are read straight from the driver, no record is built
+ * per row. Columns are numbered from 1 as in JDBC.
+ *
+ */
+public final class Row {
+
+    /**
+     * Called once per row of a query, in result order.
+     */
+    public interface Handler {
+        void row (Row row) throws SQLException;
+    }//end Handler
+
+    private final ResultSet _rs;
+
+    Row (ResultSet rs) {
+        this._rs = rs;
+    }
+
+    public int getInt (int column) throws SQLException {
+        return this._rs.getInt(column);
+    }
+
+    public long getLong (int column) throws SQLException {
+        return this._rs.getLong(column);
+    }
+
+    public String getString (int column) throws SQLException {
+        return this._rs.getString(column);
+    }
+
+    public Timestamp getTimestamp (int column) throws SQLException {
+        return this._rs.getTimestamp(column);
+    }
+
+    /**
+     * Returns true if the column read last was SQL NULL, getInt and getLong
+     * return 0 for it.
+     */
+    public boolean wasNull () throws SQLException {
+        return this._rs.wasNull();
+    }
+}//end Row
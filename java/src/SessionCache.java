@@ -0,0 +1,198 @@
+/*
+ * Per-session cache of the logged in user's lists and chats
+ * ==========================================================
+ *
+ * Loaded at LogIn so that permission checks and list lookups do not have to
+ * go back to the database on every action.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The block and contact list ids of a user, the members of those lists, the
+ * chats the user is a member of with their type and the chats the user owns.
+ *
+ * A cache is marked stale by the Messenger operations that change any of
+ * this, in the session that made the change and in every other session of
+ * this process the change affects, and is reloaded on its next use. Changes
+ * made by other processes are picked up once the cache is older than
+ * MAX_AGE.
+ *
+ */
+public class SessionCache {
+
+    // milliseconds after which a cache is reloaded even if nothing marked it stale
+    static final long MAX_AGE = Long.getLong("session.cacheTtl", 30000L);
+
+    // open caches of every session in this process, by login
+    private static final ConcurrentHashMap<String, Set<SessionCache>> _open = new ConcurrentHashMap<String, Set<SessionCache>>();
+
+    final String login;
+    private volatile boolean _stale = true;
+    private long _loadedAt = 0;
+
+    private int _blockList;
+    private int _contactList;
+    private Set<String> _blocked = new HashSet<String>();
+    private Set<String> _contacts = new HashSet<String>();
+    // chat_id -> chat_type of every chat the user is a member of
+    // read by invalidateChat from other sessions' threads
+    private volatile Map<Integer, String> _chats = new HashMap<Integer, String>();
+    private Set<Integer> _owned = new HashSet<Integer>();
+
+    private SessionCache (String login) {
+        this.login = login;
+    }
+
+    /**
+     * Creates and loads the cache of a user that just logged in.
+     *
+     * @param esql the session the cache belongs to
+     * @param login the user's login
+     * @return the loaded cache
+     * @throws java.sql.SQLException when failed to load the cache
+     */
+    public static SessionCache open (Messenger esql, String login) throws SQLException {
+        SessionCache cache = new SessionCache(login);
+        cache.load(esql);
+        Set<SessionCache> caches = _open.get(login);
+        if (caches == null){
+            caches = Collections.newSetFromMap(new ConcurrentHashMap<SessionCache, Boolean>());
+            Set<SessionCache> raced = _open.putIfAbsent(login, caches);
+            if (raced != null) caches = raced;
+        }
+        caches.add(cache);
+        return cache;
+    }//end open
+
+    /**
+     * Forgets the cache when its session logs out.
+     */
+    public void close () {
+        Set<SessionCache> caches = _open.get(this.login);
+        if (caches != null)
+            caches.remove(this);
+    }//end close
+
+    /**
+     * Marks the caches of every session of login stale.
+     */
+    public static void invalidate (String login) {
+        Set<SessionCache> caches = _open.get(login);
+        if (caches == null) return;
+        for (SessionCache cache : caches)
+            cache._stale = true;
+    }//end invalidate
+
+    /**
+     * Marks the caches of every session that is a member of chat_id stale.
+     */
+    public static void invalidateChat (int chat_id) {
+        for (Set<SessionCache> caches : _open.values())
+            for (SessionCache cache : caches)
+                if (cache._chats.containsKey(chat_id))
+                    cache._stale = true;
+    }//end invalidateChat
+
+    /**
+     * Reloads the cache if it was marked stale or is older than MAX_AGE.
+     *
+     * @param esql the session the cache belongs to
+     * @throws java.sql.SQLException when failed to reload the cache
+     */
+    public void refresh (Messenger esql) throws SQLException {
+        if (this._stale || System.currentTimeMillis() - this._loadedAt > MAX_AGE)
+            load(esql);
+    }//end refresh
+
+    /*
+     * Loads everything from the database, four queries on one connection
+     */
+    private void load (Messenger esql) throws SQLException {
+        // cleared before the queries so a change made while loading marks the new copy stale
+        this._stale = false;
+        esql.borrow();
+        try{
+            List<List<String>> lists = esql.executeQueryAndReturnResult("SessionCache.lists", "SELECT block_list, contact_list FROM usr WHERE login=?", this.login);
+            if (lists.size() == 0)
+                throw new SQLException("No such user: " + this.login);
+            int blockList = Integer.parseInt(lists.get(0).get(0));
+            int contactList = Integer.parseInt(lists.get(0).get(1));
+
+            Set<String> blocked = new HashSet<String>();
+            Set<String> contacts = new HashSet<String>();
+            for (List<String> row : esql.executeQueryAndReturnResult("SessionCache.listMembers", "SELECT list_id, list_member FROM user_list_contains WHERE list_id IN (?,?)", blockList, contactList)){
+                if (Integer.parseInt(row.get(0)) == blockList) blocked.add(row.get(1));
+                else contacts.add(row.get(1));
+            }
+
+            final Map<Integer, String> chats = new HashMap<Integer, String>();
+            esql.forEachRow("SessionCache.chats", "SELECT CL.chat_id, C.chat_type FROM chat_list CL JOIN chat C ON C.chat_id=CL.chat_id WHERE CL.member=?",
+                    new Row.Handler(){
+                        public void row(Row row) throws SQLException {
+                            chats.put(row.getInt(1), row.getString(2));
+                        }
+                    }, this.login);
+
+            Set<Integer> owned = new HashSet<Integer>();
+            for (int chat_id : esql.queryInts("SessionCache.owned", "SELECT chat_id FROM chat WHERE init_sender=? AND deleted_at IS NULL", this.login))
+                owned.add(chat_id);
+
+            this._blockList = blockList;
+            this._contactList = contactList;
+            this._blocked = blocked;
+            this._contacts = contacts;
+            this._chats = chats;
+            this._owned = owned;
+            this._loadedAt = System.currentTimeMillis();
+        }catch (SQLException e){
+            this._stale = true;
+            throw e;
+        }finally{
+            esql.release();
+        }
+    }//end load
+
+    public int listId (String list_type) {
+        return list_type.equals("block") ? this._blockList : this._contactList;
+    }
+
+    /**
+     * Returns the logins on the user's block or contact list.
+     */
+    public Set<String> listMembers (String list_type) {
+        return Collections.unmodifiableSet(list_type.equals("block") ? this._blocked : this._contacts);
+    }
+
+    public boolean isBlocked (String login) {
+        return this._blocked.contains(login);
+    }
+
+    public boolean isContact (String login) {
+        return this._contacts.contains(login);
+    }
+
+    public boolean isMember (int chat_id) {
+        return this._chats.containsKey(chat_id);
+    }
+
+    public boolean isOwner (int chat_id) {
+        return this._owned.contains(chat_id);
+    }
+
+    /**
+     * Returns the type of a chat the user is a member of, null for any other chat.
+     */
+    public String chatType (int chat_id) {
+        return this._chats.get(chat_id);
+    }
+}//end SessionCache
@@ -0,0 +1,148 @@
+/*
+ * Bounded cache of hot rows shared by every session
+ * =================================================
+ *
+ * Keeps recently read usr and chat rows in memory so that concurrent
+ * sessions do not keep reading the same rows from the database.
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded LRU cache whose entries also expire after a fixed time to
+ * live. Keys are spread over a number of stripes, each an access-ordered map
+ * behind its own lock, so sessions working on different keys rarely wait on
+ * each other.
+ *
+ */
+public class SharedCache<K, V> {
+
+    /*
+     * A cached value and the time it stops being valid
+     */
+    private static class Cached<V> {
+        final V value;
+        final long expiresAt;
+
+        Cached (V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }//end Cached
+
+    /*
+     * One access-ordered map dropping its least recently used entry when full
+     */
+    private class Stripe extends LinkedHashMap<K, Cached<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int _capacity;
+
+        Stripe (int capacity) {
+            super(16, 0.75f, true);
+            this._capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<K, Cached<V>> eldest) {
+            if (size() <= this._capacity)
+                return false;
+            _evictions.incrementAndGet();
+            return true;
+        }
+    }//end Stripe
+
+    private final String _name;
+    private final long _ttl;
+    private final List<Stripe> _stripes;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _expirations = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param name the name shown in stats
+     * @param capacity maximum number of entries held
+     * @param ttl milliseconds an entry stays valid after it was put
+     * @param stripes number of independently locked stripes
+     */
+    public SharedCache (String name, int capacity, long ttl, int stripes) {
+        this._name = name;
+        this._ttl = ttl;
+        this._stripes = new ArrayList<Stripe>(stripes);
+        int perStripe = Math.max(1, (capacity + stripes - 1) / stripes);
+        for (int i = 0; i < stripes; ++i)
+            this._stripes.add(new Stripe(perStripe));
+    }//end SharedCache
+
+    private Stripe stripe (Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this._stripes.get((h & 0x7fffffff) % this._stripes.size());
+    }//end stripe
+
+    /**
+     * Returns the cached value of key, or null if it is missing or expired.
+     */
+    public V get (K key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe){
+            Cached<V> entry = stripe.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()){
+                stripe.remove(key);
+                this._expirations.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null){
+                this._misses.incrementAndGet();
+                return null;
+            }
+            this._hits.incrementAndGet();
+            return entry.value;
+        }
+    }//end get
+
+    /**
+     * Caches value under key, replacing any previous value.
+     */
+    public void put (K key, V value) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe){
+            stripe.put(key, new Cached<V>(value, System.currentTimeMillis() + this._ttl));
+        }
+    }//end put
+
+    /**
+     * Drops the cached value of key, after the row it came from changed.
+     */
+    public void remove (K key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe){
+            stripe.remove(key);
+        }
+    }//end remove
+
+    /**
+     * Returns the hit, miss, eviction and expiration counters.
+     */
+    public String stats () {
+        int size = 0;
+        for (Stripe stripe : this._stripes)
+            synchronized (stripe){
+                size += stripe.size();
+            }
+        long hits = this._hits.get();
+        long lookups = hits + this._misses.get();
+        return String.format("%s cache: %d entries, %d lookups, hit rate %.1f%%, %d evicted, %d expired",
+                this._name, size, lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                this._evictions.get(), this._expirations.get());
+    }//end stats
+}//end SharedCache
@@ -0,0 +1,3 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -v ON_ERROR_STOP=1 -p $PGPORT $DB_NAME < $DIR/../src/migrate_varchar.sql
@@ -0,0 +1,18 @@
+-- Adds the read watermarks of create_tables.sql to the chat_list of an older
+-- database. Every member starts with the chats read up to their current last
+-- message, so that no old message shows up as unread. Needs chat_summary,
+-- see rebuild_chat_summary.sql.
+
+BEGIN;
+
+ALTER TABLE chat_list
+    ADD COLUMN IF NOT EXISTS last_read_msg_id integer,
+    ADD COLUMN IF NOT EXISTS last_read_timestamp timestamp;
+
+UPDATE chat_list CL SET last_read_msg_id=S.last_msg_id, last_read_timestamp=S.last_msg_timestamp
+FROM chat_summary S
+WHERE S.chat_id=CL.chat_id AND CL.last_read_msg_id IS NULL;
+
+COMMIT;
+
+ANALYZE chat_list;
@@ -0,0 +1,20 @@
+-- Adds the msg_tsv column of create_tables.sql to the message table of an
+-- older database and moves the msg_text_search index onto it. Every message
+-- is rewritten, so run it while nobody is connected, and after
+-- migrate_varchar.sql on a database with the old CHAR columns.
+
+BEGIN;
+
+ALTER TABLE message ADD COLUMN IF NOT EXISTS msg_tsv tsvector
+    GENERATED ALWAYS AS (to_tsvector('english', msg_text)) STORED;
+
+DROP INDEX IF EXISTS msg_text_search;
+
+CREATE INDEX msg_text_search
+ON message
+USING GIN
+(msg_tsv);
+
+COMMIT;
+
+ANALYZE message;
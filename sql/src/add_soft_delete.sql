@@ -0,0 +1,21 @@
+-- Adds the deleted_at columns of create_tables.sql to the usr and chat of an
+-- older database, with the partial indexes the reaper finds them by.
+
+BEGIN;
+
+ALTER TABLE usr ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+ALTER TABLE chat ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+
+CREATE INDEX IF NOT EXISTS usr_deleted
+ON usr
+USING BTREE
+(deleted_at)
+WHERE deleted_at IS NOT NULL;
+
+CREATE INDEX IF NOT EXISTS chat_deleted
+ON chat
+USING BTREE
+(deleted_at)
+WHERE deleted_at IS NOT NULL;
+
+COMMIT;
@@ -12,3 +12,30 @@ CREATE INDEX mess_sender_chat
 ON message
 USING BTREE
 (sender_login, chat_id);
+
+CREATE INDEX chat_msg_time
+ON message
+USING BTREE
+(chat_id, msg_timestamp DESC, msg_id DESC);
+
+CREATE INDEX usr_deleted
+ON usr
+USING BTREE
+(deleted_at)
+WHERE deleted_at IS NOT NULL;
+
+CREATE INDEX chat_deleted
+ON chat
+USING BTREE
+(deleted_at)
+WHERE deleted_at IS NOT NULL;
+
+CREATE INDEX list_member
+ON user_list_contains
+USING BTREE
+(list_member);
+
+CREATE INDEX msg_text_search
+ON message
+USING GIN
+(msg_tsv);
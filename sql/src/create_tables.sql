@@ -1,3 +1,4 @@
+DROP TABLE CHAT_SUMMARY;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -7,49 +8,65 @@ DROP TABLE USER_LIST;
 
 CREATE TABLE USER_LIST(
     list_id serial,
-    list_type char(10) NOT NULL, 
+    list_type varchar(10) NOT NULL, 
     PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-    login char(50), 
-    phoneNum CHAR(16) UNIQUE NOT NULL, 
-    password char(50) NOT NULL,
-    status char(140),
+    login varchar(50), 
+    phoneNum varchar(16) UNIQUE NOT NULL, 
+    password varchar(50) NOT NULL,
+    status varchar(140),
     block_list integer,
     contact_list integer,
+    deleted_at timestamp,
     Primary Key(login),
     FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
     FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
 
 CREATE TABLE USER_LIST_CONTAINS(
     list_id integer,
-    list_member char(50),
+    list_member varchar(50),
     PRIMARY KEY(list_id,list_member), 
     FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
     FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
 
 CREATE TABLE CHAT(
     chat_id serial, 
-    chat_type char(50) NOT NULL,
-    init_sender char(50),
+    chat_type varchar(50) NOT NULL,
+    init_sender varchar(50),
+    deleted_at timestamp,
     PRIMARY KEY(chat_id), 
     FOREIGN KEY(init_sender) REFERENCES USR(login));
 
 CREATE TABLE CHAT_LIST(
     chat_id integer, 
-    member char(50),
+    member varchar(50),
+    last_read_msg_id integer,
+    last_read_timestamp timestamp,
     PRIMARY KEY(chat_id,member), 
     FOREIGN KEY(member) REFERENCES USR(login), 
     FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
 
 CREATE TABLE MESSAGE(
     msg_id serial, 
-    msg_text char(300) NOT NULL, 
+    msg_text varchar(300) NOT NULL, 
     msg_timestamp timestamp NOT NULL,
-        sender_login char(50),
+        sender_login varchar(50),
     chat_id integer,
-    PRIMARY KEY(msg_id), 
+    msg_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', msg_text)) STORED,
+    PRIMARY KEY(msg_id, msg_timestamp), 
     FOREIGN KEY(sender_login) REFERENCES USR(login),
-    FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+    FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE)
+    PARTITION BY RANGE (msg_timestamp);
 
+-- monthly partitions are created by MessagePartitions, rows outside of them land here
+CREATE TABLE MESSAGE_DEFAULT PARTITION OF MESSAGE DEFAULT;
 
+CREATE TABLE CHAT_SUMMARY(
+    chat_id integer,
+    last_msg_id integer,
+    last_msg_timestamp timestamp,
+    last_sender varchar(50),
+    msg_count integer NOT NULL,
+    PRIMARY KEY(chat_id),
+    FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
@@ -3,7 +3,7 @@ FROM '/home/csgrads/dlei005/cs166/project/data/usr_list.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
-COPY USR
+COPY USR(login, phoneNum, password, status, block_list, contact_list)
 FROM '/home/csgrads/dlei005/cs166/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -11,12 +11,12 @@ COPY USER_LIST_CONTAINS
 FROM '/home/csgrads/dlei005/cs166/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
-COPY CHAT
+COPY CHAT(chat_id, chat_type, init_sender)
 FROM '/home/csgrads/dlei005/cs166/project/data/chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
 
-COPY CHAT_LIST
+COPY CHAT_LIST(chat_id, member)
 FROM '/home/csgrads/dlei005/cs166/project/data/chat_list.csv'
 WITH DELIMITER ';';
 
@@ -0,0 +1,41 @@
+-- Moves a database created with the old CHAR(n) schema to the varchar
+-- columns of create_tables.sql. Casting to varchar drops the blank padding.
+-- Every table is rewritten, so run it while nobody is connected.
+-- The foreign keys on login are dropped first and added again after, as
+-- both sides of each key change type.
+
+BEGIN;
+
+ALTER TABLE user_list_contains DROP CONSTRAINT user_list_contains_list_member_fkey;
+ALTER TABLE chat DROP CONSTRAINT chat_init_sender_fkey;
+ALTER TABLE chat_list DROP CONSTRAINT chat_list_member_fkey;
+ALTER TABLE message DROP CONSTRAINT message_sender_login_fkey;
+
+ALTER TABLE user_list ALTER COLUMN list_type TYPE varchar(10);
+
+ALTER TABLE usr
+    ALTER COLUMN login TYPE varchar(50),
+    ALTER COLUMN phoneNum TYPE varchar(16),
+    ALTER COLUMN password TYPE varchar(50),
+    ALTER COLUMN status TYPE varchar(140);
+
+ALTER TABLE user_list_contains ALTER COLUMN list_member TYPE varchar(50);
+
+ALTER TABLE chat
+    ALTER COLUMN chat_type TYPE varchar(50),
+    ALTER COLUMN init_sender TYPE varchar(50);
+
+ALTER TABLE chat_list ALTER COLUMN member TYPE varchar(50);
+
+ALTER TABLE message
+    ALTER COLUMN msg_text TYPE varchar(300),
+    ALTER COLUMN sender_login TYPE varchar(50);
+
+ALTER TABLE user_list_contains ADD FOREIGN KEY(list_member) REFERENCES usr(login) ON DELETE CASCADE;
+ALTER TABLE chat ADD FOREIGN KEY(init_sender) REFERENCES usr(login);
+ALTER TABLE chat_list ADD FOREIGN KEY(member) REFERENCES usr(login);
+ALTER TABLE message ADD FOREIGN KEY(sender_login) REFERENCES usr(login);
+
+COMMIT;
+
+ANALYZE;
@@ -0,0 +1,58 @@
+-- Moves the MESSAGE table of a database created before partitioning to the
+-- partitioned MESSAGE of create_tables.sql: one partition per month from the
+-- oldest message to the current month, and the default partition.
+-- Every message is copied, so run it while nobody is connected. Run
+-- java/scripts/partitions.sh after it to create the future partitions.
+
+BEGIN;
+
+ALTER TABLE message RENAME TO message_unpartitioned;
+ALTER TABLE message_unpartitioned DROP CONSTRAINT message_pkey;
+DROP INDEX IF EXISTS mess_sender_chat, chat_msg_time, msg_text_search;
+
+-- the new table takes over the msg_id sequence, so ids keep counting on
+CREATE TABLE message(
+    msg_id integer NOT NULL DEFAULT nextval('message_msg_id_seq'),
+    msg_text varchar(300) NOT NULL,
+    msg_timestamp timestamp NOT NULL,
+    sender_login varchar(50),
+    chat_id integer,
+    msg_tsv tsvector GENERATED ALWAYS AS (to_tsvector('english', msg_text)) STORED,
+    PRIMARY KEY(msg_id, msg_timestamp),
+    FOREIGN KEY(sender_login) REFERENCES usr(login),
+    FOREIGN KEY(chat_id) REFERENCES chat(chat_id) ON DELETE CASCADE)
+    PARTITION BY RANGE (msg_timestamp);
+ALTER SEQUENCE message_msg_id_seq OWNED BY message.msg_id;
+
+CREATE TABLE message_default PARTITION OF message DEFAULT;
+
+SELECT format('CREATE TABLE message_y%sm%s PARTITION OF message FOR VALUES FROM (%L) TO (%L)',
+              to_char(m, 'YYYY'), to_char(m, 'MM'), m, m + interval '1 month')
+FROM generate_series(date_trunc('month', COALESCE((SELECT min(msg_timestamp) FROM message_unpartitioned), LOCALTIMESTAMP)),
+                     date_trunc('month', LOCALTIMESTAMP), interval '1 month') m
+\gexec
+
+INSERT INTO message(msg_id, msg_text, msg_timestamp, sender_login, chat_id)
+SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM message_unpartitioned;
+
+DROP TABLE message_unpartitioned;
+
+-- the MESSAGE indexes of create_indexes.sql, built on every partition
+CREATE INDEX mess_sender_chat
+ON message
+USING BTREE
+(sender_login, chat_id);
+
+CREATE INDEX chat_msg_time
+ON message
+USING BTREE
+(chat_id, msg_timestamp DESC, msg_id DESC);
+
+CREATE INDEX msg_text_search
+ON message
+USING GIN
+(msg_tsv);
+
+COMMIT;
+
+ANALYZE message;
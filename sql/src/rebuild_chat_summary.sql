@@ -0,0 +1,30 @@
+-- Recomputes chat_summary from MESSAGE: the number of messages of every
+-- chat and its last message, the newest by (msg_timestamp, msg_id).
+-- The client keeps the summaries up to date on every CreateMsg, EditMsg and
+-- DeleteMsg. Run this after messages were loaded or changed by other means,
+-- and once on a database created before chat_summary existed.
+-- Sessions writing messages wait until the rebuild has committed.
+
+CREATE TABLE IF NOT EXISTS CHAT_SUMMARY(
+    chat_id integer,
+    last_msg_id integer,
+    last_msg_timestamp timestamp,
+    last_sender varchar(50),
+    msg_count integer NOT NULL,
+    PRIMARY KEY(chat_id),
+    FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+BEGIN;
+
+LOCK TABLE chat_summary IN EXCLUSIVE MODE;
+
+DELETE FROM chat_summary;
+
+INSERT INTO chat_summary(chat_id, last_msg_id, last_msg_timestamp, last_sender, msg_count)
+SELECT DISTINCT ON (chat_id) chat_id, msg_id, msg_timestamp, sender_login, count(*) OVER (PARTITION BY chat_id)
+FROM message
+ORDER BY chat_id, msg_timestamp DESC, msg_id DESC;
+
+COMMIT;
+
+ANALYZE chat_summary;